@@ -0,0 +1,178 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.filesender;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+/**
+ * Utilities shared by the benchmarks: option parsing, temporary
+ * corpora, and measuring the bytes allocated by threads.
+ */
+public class Benchmark {
+
+	/**
+	 * Parse the options of a benchmark. Each option is a name starting
+	 * with a hyphen followed by a value; the other arguments are returned
+	 * in the list keyed by the empty string.
+	 * @param args the command-line arguments.
+	 * @return the options, keyed by name without the hyphen.
+	 */
+	public static Map<String,Object> parseOptions(String[] args) {
+		HashMap<String,Object> options = new HashMap<String,Object>();
+		LinkedList<String> params = new LinkedList<String>();
+		for (int i=0; i<args.length; i++) {
+			if (args[i].startsWith("-") && (i + 1 < args.length)) options.put(args[i].substring(1), args[++i]);
+			else params.add(args[i]);
+		}
+		options.put("", params);
+		return options;
+	}
+
+	/**
+	 * Get a numeric option.
+	 * @param options the options.
+	 * @param name the name of the option.
+	 * @param defaultValue the value if the option is not present.
+	 * @return the value.
+	 */
+	public static long getLong(Map<String,Object> options, String name, long defaultValue) {
+		Object value = options.get(name);
+		return (value != null) ? Long.parseLong(value.toString()) : defaultValue;
+	}
+
+	/**
+	 * Make a temporary directory.
+	 * @param prefix the prefix of its name.
+	 * @return the directory.
+	 * @throws IOException if it cannot be created.
+	 */
+	public static File makeTempDirectory(String prefix) throws IOException {
+		File dir = File.createTempFile(prefix, "");
+		dir.delete();
+		if (!dir.mkdirs()) throw new IOException("Unable to create " + dir);
+		return dir;
+	}
+
+	/**
+	 * Write a file of pseudo-random bytes, which do not compress.
+	 * @param file the file.
+	 * @param length the length in bytes.
+	 * @param random the source of the bytes.
+	 * @throws IOException if the file cannot be written.
+	 */
+	public static void writeFile(File file, long length, Random random) throws IOException {
+		byte[] b = new byte[(int)Math.min(length, 1024 * 1024)];
+		OutputStream out = new FileOutputStream(file);
+		try {
+			while (length > 0) {
+				random.nextBytes(b);
+				int n = (int)Math.min(length, b.length);
+				out.write(b, 0, n);
+				length -= n;
+			}
+		}
+		finally { out.close(); }
+	}
+
+	/**
+	 * Delete a file, or a directory and everything in it.
+	 * @param file the file or directory.
+	 */
+	public static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File f : files) delete(f);
+		}
+		file.delete();
+	}
+
+	/**
+	 * Get the number of bytes allocated by the current thread since it started.
+	 * @return the number of bytes.
+	 */
+	public static long getAllocatedBytes() {
+		return ((com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean())
+					.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * A Thread that measures the bytes allocated by all the threads of
+	 * the JVM, except those whose names start with a prefix, between
+	 * its creation and the call to finish. The counters of the threads
+	 * are sampled every few milliseconds, so the allocation of threads
+	 * that end while it runs is counted up to their last sample.
+	 */
+	public static class AllocationMeter extends Thread {
+		static final String name = "Benchmark-Meter";
+
+		com.sun.management.ThreadMXBean mx =
+			(com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		String exclude;
+		HashMap<Long,Long> first = new HashMap<Long,Long>();
+		HashMap<Long,Long> last = new HashMap<Long,Long>();
+		HashSet<Long> excluded = new HashSet<Long>();
+		volatile boolean running = true;
+
+		/**
+		 * Class constructor, which takes the first sample.
+		 * @param exclude the prefix of the names of the threads not to measure.
+		 */
+		public AllocationMeter(String exclude) {
+			super(name);
+			this.exclude = exclude;
+			setDaemon(true);
+			sample();
+			first.putAll(last);
+		}
+
+		public void run() {
+			while (running) {
+				sample();
+				try { Thread.sleep(5); }
+				catch (InterruptedException ex) { return; }
+			}
+		}
+
+		/**
+		 * Stop sampling.
+		 * @return the number of bytes allocated by the measured threads.
+		 * @throws InterruptedException if the thread is interrupted while waiting.
+		 */
+		public long finish() throws InterruptedException {
+			running = false;
+			join();
+			sample();
+			long total = 0;
+			for (Map.Entry<Long,Long> e : last.entrySet()) {
+				Long start = first.get(e.getKey());
+				total += e.getValue() - ((start != null) ? start : 0);
+			}
+			return total;
+		}
+
+		private synchronized void sample() {
+			long[] ids = mx.getAllThreadIds();
+			long[] bytes = mx.getThreadAllocatedBytes(ids);
+			for (int i=0; i<ids.length; i++) {
+				if ((bytes[i] < 0) || excluded.contains(ids[i])) continue;
+				if (!last.containsKey(ids[i])) {
+					java.lang.management.ThreadInfo info = mx.getThreadInfo(ids[i]);
+					if ((info == null)
+							|| info.getThreadName().startsWith(exclude)
+							|| info.getThreadName().equals(name)) {
+						excluded.add(ids[i]);
+						continue;
+					}
+				}
+				last.put(ids[i], bytes[i]);
+			}
+		}
+	}
+}
@@ -0,0 +1,145 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.filesender;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.*;
+import org.dcm4che.data.*;
+import org.dcm4che.dict.*;
+import org.rsna.ctp.objects.DicomObject;
+
+/**
+ * A standalone benchmark of the SOPInstanceUID lookup for duplicate
+ * checking. It reads the SOPInstanceUID of each file in a corpus with
+ * the DicomHeaderReader and with a full DicomObject, and reports the
+ * time and the bytes allocated per file for each, and any file for
+ * which the two disagree. The first pass reads the files into the
+ * system's file cache; the later passes show the steady state.
+ * <p>
+ * Unless a directory is given, a corpus of 60 files with 4 MB of
+ * pixel data each, a third of them in each of explicit VR little
+ * endian, implicit VR little endian, and explicit VR big endian, is
+ * written to a temporary directory and deleted at the end.
+ * <p>
+ * Usage: HeaderBenchmark [-files n] [-size MB] [-passes n] [dir]
+ */
+public class HeaderBenchmark {
+
+	static final String[] transferSyntaxes = new String[] {
+		UIDs.ExplicitVRLittleEndian, UIDs.ImplicitVRLittleEndian, UIDs.ExplicitVRBigEndian
+	};
+
+	public static void main(String[] args) throws Exception {
+		Map<String,Object> options = Benchmark.parseOptions(args);
+		int count = (int)Benchmark.getLong(options, "files", 60);
+		long size = Benchmark.getLong(options, "size", 4) * 1024 * 1024;
+		int passes = (int)Benchmark.getLong(options, "passes", 3);
+		@SuppressWarnings("unchecked")
+		java.util.List<String> params = (java.util.List<String>)options.get("");
+
+		File dir;
+		boolean generated = params.isEmpty();
+		if (generated) {
+			dir = Benchmark.makeTempDirectory("FS-bench-");
+			System.out.println("Writing " + count + " DICOM files of " + (size / (1024 * 1024)) + " MB to " + dir);
+			for (int i=0; i<count; i++) writeObject(new File(dir, i + ".dcm"), i, size);
+		}
+		else dir = new File(params.get(0));
+		LinkedList<File> files = new LinkedList<File>();
+		listFiles(dir, files);
+
+		try {
+			System.out.println("Reading " + files.size() + " files in " + dir);
+			System.out.println("pass   reader ms/file  reader KB/file   DicomObject ms/file  DicomObject KB/file  mismatches");
+			for (int pass=1; pass<=passes; pass++) run(pass, files);
+		}
+		finally {
+			if (generated) Benchmark.delete(dir);
+		}
+	}
+
+	//Read the UIDs of all the files both ways and print the results.
+	static void run(int pass, java.util.List<File> files) {
+		String[] fast = new String[files.size()];
+		String[] full = new String[files.size()];
+		long readerTime = 0, readerBytes = 0, objectTime = 0, objectBytes = 0;
+		int i = 0;
+		for (File file : files) {
+			long bytes = Benchmark.getAllocatedBytes();
+			long start = System.nanoTime();
+			fast[i] = DicomHeaderReader.getSOPInstanceUID(file);
+			readerTime += System.nanoTime() - start;
+			readerBytes += Benchmark.getAllocatedBytes() - bytes;
+
+			bytes = Benchmark.getAllocatedBytes();
+			start = System.nanoTime();
+			try {
+				DicomObject dob = new DicomObject(file);
+				full[i] = dob.getSOPInstanceUID();
+				dob.close();
+			}
+			catch (Exception notDicom) { }
+			objectTime += System.nanoTime() - start;
+			objectBytes += Benchmark.getAllocatedBytes() - bytes;
+			i++;
+		}
+		int mismatches = 0;
+		for (i=0; i<fast.length; i++) {
+			if ((fast[i] == null) ? (full[i] != null) : !fast[i].equals(full[i])) mismatches++;
+		}
+		int n = Math.max(files.size(), 1);
+		System.out.println(String.format("%4d  %15.3f  %14.1f  %20.3f  %19.1f  %10d",
+			pass, readerTime / 1e6 / n, readerBytes / 1024.0 / n,
+			objectTime / 1e6 / n, objectBytes / 1024.0 / n, mismatches));
+	}
+
+	//List the files in a directory and its subdirectories.
+	static void listFiles(File dir, java.util.List<File> files) {
+		File[] list = dir.listFiles();
+		if (list == null) return;
+		Arrays.sort(list);
+		for (File file : list) {
+			if (file.isDirectory()) listFiles(file, files);
+			else files.add(file);
+		}
+	}
+
+	//Write a Part 10 file with a 16-bit image of about the given size,
+	//in one of the transfer syntaxes, chosen by the index.
+	static void writeObject(File file, int index, long size) throws IOException {
+		String tsuid = transferSyntaxes[index % transferSyntaxes.length];
+		int columns = 1024;
+		int rows = (int)Math.max(size / (2 * columns), 1);
+		DcmObjectFactory factory = DcmObjectFactory.getInstance();
+		Dataset ds = factory.newDataset();
+		ds.putUI(Tags.SOPClassUID, UIDs.SecondaryCaptureImageStorage);
+		ds.putUI(Tags.SOPInstanceUID, "1.2.826.0.1.3680043.2.1143.9." + index);
+		ds.putUI(Tags.StudyInstanceUID, "1.2.826.0.1.3680043.2.1143.9.1");
+		ds.putUI(Tags.SeriesInstanceUID, "1.2.826.0.1.3680043.2.1143.9.1.1");
+		ds.putPN(Tags.PatientName, "Benchmark^" + index);
+		ds.putLO(Tags.PatientID, "BENCH" + index);
+		ds.putIS(Tags.InstanceNumber, index + 1);
+		ds.putUS(Tags.SamplesPerPixel, 1);
+		ds.putCS(Tags.PhotometricInterpretation, "MONOCHROME2");
+		ds.putUS(Tags.Rows, rows);
+		ds.putUS(Tags.Columns, columns);
+		ds.putUS(Tags.BitsAllocated, 16);
+		ds.putUS(Tags.BitsStored, 12);
+		ds.putUS(Tags.HighBit, 11);
+		ds.putUS(Tags.PixelRepresentation, 0);
+		byte[] pixels = new byte[rows * columns * 2];
+		new Random(index).nextBytes(pixels);
+		ds.putOW(Tags.PixelData, ByteBuffer.wrap(pixels).order(ByteOrder.LITTLE_ENDIAN));
+		ds.setFileMetaInfo(factory.newFileMetaInfo(ds, tsuid));
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+		try { ds.writeFile(out, DcmEncodeParam.valueOf(tsuid)); }
+		finally { out.close(); }
+	}
+}
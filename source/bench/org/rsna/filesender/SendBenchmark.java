@@ -0,0 +1,130 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.filesender;
+
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.rsna.ui.GeneralFileFilter;
+
+/**
+ * A standalone benchmark of the send path. It sends a corpus of small
+ * files over HTTP several times, with a Sender and its Workers as the
+ * application runs them, and reports the files per second and the
+ * bytes allocated per file for each pass. The first pass warms up the
+ * JVM; the later passes show the steady state.
+ * <p>
+ * Unless a destination is given, the files are sent to a sink in the
+ * same JVM, which reads each upload and answers OK, and whose threads
+ * are not counted in the allocation. Unless a directory is given, a
+ * corpus of 50,000 files of 2 KB is written to a temporary directory
+ * and deleted at the end.
+ * <p>
+ * Usage: SendBenchmark [-files n] [-size bytes] [-threads n] [-passes n] [-url url] [dir]
+ */
+public class SendBenchmark {
+
+	static final String sinkName = "Benchmark-Sink";
+	static final int filesPerDirectory = 500;
+
+	public static void main(String[] args) throws Exception {
+		Map<String,Object> options = Benchmark.parseOptions(args);
+		int files = (int)Benchmark.getLong(options, "files", 50000);
+		long size = Benchmark.getLong(options, "size", 2048);
+		int threads = (int)Benchmark.getLong(options, "threads", 4);
+		int passes = (int)Benchmark.getLong(options, "passes", 3);
+		String url = (String)options.get("url");
+		@SuppressWarnings("unchecked")
+		java.util.List<String> params = (java.util.List<String>)options.get("");
+
+		File dir;
+		boolean generated = params.isEmpty();
+		if (generated) {
+			dir = Benchmark.makeTempDirectory("FS-bench-");
+			System.out.println("Writing " + files + " files of " + size + " bytes to " + dir);
+			Random random = new Random(1);
+			for (int i=0; i<files; i++) {
+				File sub = new File(dir, Integer.toString(i / filesPerDirectory));
+				sub.mkdirs();
+				Benchmark.writeFile(new File(sub, i + ".bin"), size, random);
+			}
+		}
+		else dir = new File(params.get(0));
+
+		HttpServer sink = null;
+		if (url == null) {
+			sink = startSink(threads);
+			url = "http://127.0.0.1:" + sink.getAddress().getPort() + "/";
+		}
+		try {
+			System.out.println("Sending " + dir + " to " + url + " with " + threads + " threads");
+			System.out.println("pass     files   seconds   files/s   bytes allocated/file");
+			for (int pass=1; pass<=passes; pass++) run(pass, dir, url, threads);
+		}
+		finally {
+			if (sink != null) sink.stop(0);
+			if (generated) Benchmark.delete(dir);
+		}
+		System.exit(0);
+	}
+
+	//Send the corpus once and print the results.
+	static void run(int pass, File dir, String url, int threads) throws Exception {
+		GeneralFileFilter filter = new GeneralFileFilter();
+		filter.setExtensions("*");
+		Sender sender = new Sender(null, filter, dir, true, false, false, true, false, url, threads);
+		SendMetrics metrics = SendMetrics.getInstance(url);
+		long failed = metrics.getFilesFailed();
+		Benchmark.AllocationMeter meter = new Benchmark.AllocationMeter(sinkName);
+		meter.start();
+		long start = System.nanoTime();
+		sender.start();
+		sender.join();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		long allocated = meter.finish();
+		int count = sender.getFileCount();
+		System.out.println(String.format("%4d  %8d  %8.2f  %8.0f  %21d",
+							pass, count, seconds, count / seconds, allocated / Math.max(count, 1)));
+		if (metrics.getFilesFailed() > failed) {
+			System.out.println("      " + (metrics.getFilesFailed() - failed) + " files failed");
+		}
+	}
+
+	//Start a sink that reads each upload and answers OK.
+	static HttpServer startSink(int threads) throws IOException {
+		//Without this, each response waits for the client's delayed ACK.
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		final AtomicInteger count = new AtomicInteger();
+		server.setExecutor(Executors.newFixedThreadPool(threads * 2, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, sinkName + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		}));
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] b = new byte[64 * 1024];
+				InputStream in = exchange.getRequestBody();
+				while (in.read(b) != -1) ;
+				in.close();
+				byte[] response = "OK".getBytes("UTF-8");
+				exchange.sendResponseHeaders(200, response.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(response);
+				out.close();
+			}
+		});
+		server.start();
+		return server;
+	}
+}
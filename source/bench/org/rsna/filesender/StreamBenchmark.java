@@ -0,0 +1,118 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.filesender;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/**
+ * A standalone benchmark of the HTTP upload copy. It copies large
+ * files with the FileStreamer in stream mode, the 1 KB buffered-stream
+ * loop that FileSender always used, and in NIO mode, through the file's
+ * channel with a large buffer, and reports the MB/s of each. Each file
+ * is copied to a loopback socket whose reader discards the data, as an
+ * upload is, and to a stream that discards it, which shows the cost of
+ * the copy alone. The first pass reads the files into the system's
+ * file cache; the later passes show the steady state.
+ * <p>
+ * Unless files are given, a file of 512 MB is written to a temporary
+ * file and deleted at the end.
+ * <p>
+ * Usage: StreamBenchmark [-size MB] [-passes n] [file...]
+ */
+public class StreamBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		Map<String,Object> options = Benchmark.parseOptions(args);
+		long size = Benchmark.getLong(options, "size", 512) * 1024 * 1024;
+		int passes = (int)Benchmark.getLong(options, "passes", 3);
+		@SuppressWarnings("unchecked")
+		java.util.List<String> params = (java.util.List<String>)options.get("");
+
+		LinkedList<File> files = new LinkedList<File>();
+		File temp = null;
+		if (params.isEmpty()) {
+			temp = File.createTempFile("FS-bench-", ".bin");
+			System.out.println("Writing " + (size / (1024 * 1024)) + " MB to " + temp);
+			Benchmark.writeFile(temp, size, new Random(1));
+			files.add(temp);
+		}
+		else {
+			for (String param : params) files.add(new File(param));
+		}
+
+		ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		Thread reader = startReader(server);
+		try {
+			System.out.println("pass  file                            MB   stream/socket  nio/socket  stream/null  nio/null  (MB/s)");
+			for (int pass=1; pass<=passes; pass++) {
+				for (File file : files) {
+					double mb = file.length() / (1024.0 * 1024.0);
+					System.out.println(String.format("%4d  %-28s %6.0f  %13.0f  %10.0f  %11.0f  %8.0f",
+						pass, file.getName(), mb,
+						mb / toSocket(file, server, false), mb / toSocket(file, server, true),
+						mb / toNull(file, false), mb / toNull(file, true)));
+				}
+			}
+		}
+		finally {
+			reader.interrupt();
+			server.close();
+			if (temp != null) temp.delete();
+		}
+	}
+
+	//Copy a file to a loopback socket, returning the time in seconds
+	//until the reader has received all of it.
+	static double toSocket(File file, ServerSocket server, boolean nio) throws IOException {
+		Socket socket = new Socket(server.getInetAddress(), server.getLocalPort());
+		try {
+			long start = System.nanoTime();
+			FileStreamer.getInstance().copy(file, socket.getOutputStream(), nio);
+			socket.shutdownOutput();
+			//The reader closes the connection when it has read to the end.
+			socket.getInputStream().read();
+			return (System.nanoTime() - start) / 1e9;
+		}
+		finally { socket.close(); }
+	}
+
+	//Copy a file to a stream that discards it, returning the time in seconds.
+	static double toNull(File file, boolean nio) throws IOException {
+		OutputStream out = new OutputStream() {
+			public void write(int b) { }
+			public void write(byte[] b, int off, int len) { }
+		};
+		long start = System.nanoTime();
+		FileStreamer.getInstance().copy(file, out, nio);
+		return (System.nanoTime() - start) / 1e9;
+	}
+
+	//Start a thread that accepts connections one at a time and reads
+	//each to the end, discarding the data, before closing it.
+	static Thread startReader(final ServerSocket server) {
+		Thread reader = new Thread("Benchmark-Reader") {
+			public void run() {
+				byte[] b = new byte[256 * 1024];
+				while (!isInterrupted()) {
+					try {
+						Socket socket = server.accept();
+						InputStream in = socket.getInputStream();
+						while (in.read(b) != -1) ;
+						socket.close();
+					}
+					catch (IOException ex) { return; }
+				}
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+		return reader;
+	}
+}
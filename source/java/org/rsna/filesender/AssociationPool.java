@@ -0,0 +1,234 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.filesender;
+
+import java.util.*;
+import org.apache.log4j.Logger;
+import org.rsna.ctp.stdstages.dicom.DicomStorageSCU;
+
+/**
+ * A JVM-wide pool of DicomStorageSCUs, keyed by destination
+ * (calledAET, callingAET, host, and port). Each DicomStorageSCU
+ * holds one association, which it keeps open between files, so
+ * returning an SCU to the pool keeps its association warm for the
+ * next file, whichever Worker or Sender run sends it.
+ * <p>
+ * Idle SCUs are closed after the idle timeout, and the number of
+ * SCUs open to any one destination is capped; callers wait for an
+ * SCU to be released when the cap is reached.
+ */
+public class AssociationPool {
+
+	static final Logger logger = Logger.getLogger(AssociationPool.class);
+
+	static AssociationPool pool = null;
+
+	volatile long idleTimeout = 60000;
+	volatile int maxAssociations = 8;
+	Hashtable<String,Destination> destinations;
+	Thread reaper;
+
+	/**
+	 * Get the singleton instance of the pool, creating it if necessary.
+	 * @return the pool.
+	 */
+	public static synchronized AssociationPool getInstance() {
+		if (pool == null) pool = new AssociationPool();
+		return pool;
+	}
+
+	/**
+	 * Get the pool key for a destination. The key is also the
+	 * URL used to construct the DicomStorageSCUs for the destination.
+	 * @param calledAET the AE Title of the destination SCP.
+	 * @param callingAET the AE Title of the sender.
+	 * @param host the host of the destination SCP.
+	 * @param port the port of the destination SCP.
+	 * @return the key.
+	 */
+	public static String getKey(String calledAET, String callingAET, String host, int port) {
+		return "dicom://" + calledAET + ":" + callingAET + "@" + host + ":" + port;
+	}
+
+	//Protected constructor; use getInstance.
+	protected AssociationPool() {
+		destinations = new Hashtable<String,Destination>();
+		reaper = new Reaper();
+		reaper.start();
+	}
+
+	/**
+	 * Set the time after which an unused association is closed.
+	 * @param idleTimeout the timeout in ms.
+	 */
+	public void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = Math.max(idleTimeout, 1000);
+	}
+
+	/**
+	 * Set the maximum number of associations open to any one destination.
+	 * @param maxAssociations the maximum number of associations.
+	 */
+	public synchronized void setMaxAssociations(int maxAssociations) {
+		this.maxAssociations = Math.max(maxAssociations, 1);
+		for (Destination d : destinations.values()) {
+			synchronized (d) { d.notifyAll(); }
+		}
+	}
+
+	/**
+	 * Get the maximum number of associations open to any one destination.
+	 * @return the maximum number of associations.
+	 */
+	public int getMaxAssociations() {
+		return maxAssociations;
+	}
+
+	/**
+	 * Get an SCU for a destination, reusing an idle one if possible.
+	 * If the destination already has the maximum number of SCUs in
+	 * use, wait until one is released.
+	 * @param key the destination key, as returned by getKey.
+	 * @return the SCU, which must be returned by calling release.
+	 * @throws InterruptedException if the thread is interrupted while waiting.
+	 */
+	public DicomStorageSCU borrow(String key) throws InterruptedException {
+		Destination d = getDestination(key);
+		synchronized (d) {
+			while (true) {
+				if (!d.idle.isEmpty()) {
+					d.inUse++;
+					return d.idle.removeFirst().scu;
+				}
+				if (d.inUse < maxAssociations) {
+					d.inUse++;
+					break;
+				}
+				d.wait();
+			}
+		}
+		logger.debug("Instantiating new DicomStorageSCU for "+key);
+		//If the SCU cannot be created, give back the slot reserved for it.
+		DicomStorageSCU scu = null;
+		try {
+			scu = new DicomStorageSCU(
+						key,
+						(int)idleTimeout, //association timeout in ms
+						false, //use new association for each file
+						0, //host tag
+						0, //port tag
+						0, //called AET tag
+						0  //calling AET tag
+					);
+			return scu;
+		}
+		finally {
+			if (scu == null) {
+				synchronized (d) {
+					d.inUse--;
+					d.notify();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Return an SCU to the pool.
+	 * @param key the destination key used to borrow the SCU.
+	 * @param scu the SCU.
+	 * @param reusable true if the SCU can be used for another file;
+	 * false if its association is suspect and it is to be closed.
+	 */
+	public void release(String key, DicomStorageSCU scu, boolean reusable) {
+		Destination d = getDestination(key);
+		synchronized (d) {
+			d.inUse--;
+			if (reusable) d.idle.addFirst(new IdleSCU(scu));
+			d.notify();
+		}
+		if (!reusable) scu.close();
+	}
+
+	/**
+	 * Get the number of SCUs currently in use for a destination.
+	 * @param key the destination key.
+	 * @return the number of SCUs borrowed and not yet released.
+	 */
+	public int getInUse(String key) {
+		Destination d = getDestination(key);
+		synchronized (d) { return d.inUse; }
+	}
+
+	/**
+	 * Get the number of idle SCUs held for a destination.
+	 * @param key the destination key.
+	 * @return the number of idle SCUs.
+	 */
+	public int getIdle(String key) {
+		Destination d = getDestination(key);
+		synchronized (d) { return d.idle.size(); }
+	}
+
+	private synchronized Destination getDestination(String key) {
+		Destination d = destinations.get(key);
+		if (d == null) {
+			d = new Destination();
+			destinations.put(key, d);
+		}
+		return d;
+	}
+
+	//The SCUs of one destination.
+	class Destination {
+		LinkedList<IdleSCU> idle = new LinkedList<IdleSCU>();
+		int inUse = 0;
+	}
+
+	//An SCU and the time it was returned to the pool.
+	class IdleSCU {
+		DicomStorageSCU scu;
+		long time;
+		public IdleSCU(DicomStorageSCU scu) {
+			this.scu = scu;
+			this.time = System.currentTimeMillis();
+		}
+	}
+
+	//A daemon Thread to close SCUs that have been idle too long.
+	//The most recently used SCUs are at the front of the idle lists,
+	//so expired SCUs are removed from the end.
+	class Reaper extends Thread {
+		public Reaper() {
+			super("AssociationPool-Reaper");
+			setDaemon(true);
+		}
+		public void run() {
+			while (true) {
+				try { Thread.sleep(Math.max(idleTimeout/4, 250)); }
+				catch (InterruptedException ex) { return; }
+				LinkedList<DicomStorageSCU> expired = new LinkedList<DicomStorageSCU>();
+				long limit = System.currentTimeMillis() - idleTimeout;
+				Destination[] ds;
+				synchronized (AssociationPool.this) {
+					ds = destinations.values().toArray(new Destination[destinations.size()]);
+				}
+				for (Destination d : ds) {
+					synchronized (d) {
+						while (!d.idle.isEmpty() && (d.idle.getLast().time < limit)) {
+							expired.add(d.idle.removeLast().scu);
+						}
+					}
+				}
+				for (DicomStorageSCU scu : expired) {
+					logger.debug("Closing idle DicomStorageSCU");
+					scu.close();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,207 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.filesender;
+
+import java.io.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import org.apache.log4j.Logger;
+
+/**
+ * A SendItem that is sent in a compressed transfer syntax. The item
+ * is compressed to a temporary file by the Compressor's threads; the
+ * Worker that sends it waits for the compression to finish. If the
+ * item cannot be compressed, or the compressed file would not be
+ * smaller, the item is sent as it is.
+ * <p>
+ * The name, path, length, and last-modified time are those of the
+ * original item, so the journal and the progress are not affected.
+ * The compression may be shared by the CompressedItems of several
+ * destinations; its temporary file is deleted when all of them
+ * have been released.
+ */
+public class CompressedItem extends SendItem {
+
+	static final Logger logger = Logger.getLogger(CompressedItem.class);
+
+	SendItem item;
+	Job job;
+
+	/**
+	 * Class constructor.
+	 * @param item the item to send.
+	 * @param job the compression of the item, to which this
+	 * CompressedItem holds a reference.
+	 */
+	public CompressedItem(SendItem item, Job job) {
+		this.item = item;
+		this.job = job;
+	}
+
+	public String getName() {
+		return item.getName();
+	}
+
+	public String getPath() {
+		return item.getPath();
+	}
+
+	public long getLength() {
+		return item.getLength();
+	}
+
+	public long getContentLength() {
+		File file = job.get();
+		return (file != null) ? file.length() : item.getContentLength();
+	}
+
+	public long getLastModified() {
+		return item.getLastModified();
+	}
+
+	public File getFile() throws IOException {
+		File file = job.get();
+		return (file != null) ? file : item.getFile();
+	}
+
+	public long copyTo(OutputStream out, boolean nio) throws IOException {
+		File file = job.get();
+		if (file != null) return FileStreamer.getInstance().copy(file, out, nio);
+		return item.copyTo(out, nio);
+	}
+
+	protected InputStream getInputStream() throws IOException {
+		return item.getInputStream();
+	}
+
+	public String getSOPInstanceUID() {
+		return item.getSOPInstanceUID();
+	}
+
+	public String getSOPClassUID() {
+		return item.getSOPClassUID();
+	}
+
+	public String getTransferSyntaxUID() {
+		return (job.get() != null) ? job.tsuid : item.getTransferSyntaxUID();
+	}
+
+	public String getStudyInstanceUID() {
+		return item.getStudyInstanceUID();
+	}
+
+	public String getSeriesInstanceUID() {
+		return item.getSeriesInstanceUID();
+	}
+
+	public void delete() {
+		item.delete();
+	}
+
+	public boolean release() {
+		job.release();
+		return item.release();
+	}
+
+	/**
+	 * The compression of one item, run by the Compressor's threads
+	 * and shared by the CompressedItems that hold references to it.
+	 * The compression is recorded in the metrics of the destination
+	 * that started it.
+	 */
+	public static class Job implements Callable<File> {
+		SendItem item;
+		String tsuid;
+		SendMetrics metrics;
+		Future<File> future = null;
+		File compressed = null;
+		int references = 1;
+		boolean released = false;
+
+		/**
+		 * Class constructor, with one reference.
+		 * @param item the item to compress.
+		 * @param tsuid the transfer syntax to compress it to.
+		 * @param metrics the metrics in which to record the compression.
+		 */
+		public Job(SendItem item, String tsuid, SendMetrics metrics) {
+			this.item = item;
+			this.tsuid = tsuid;
+			this.metrics = metrics;
+		}
+
+		/**
+		 * Compress the item. This method is called by the Compressor's threads.
+		 * @return the compressed file, or null if the item is sent as it is.
+		 */
+		public File call() {
+			synchronized (this) { if (released) return null; }
+			long start = System.nanoTime();
+			File file = null;
+			try {
+				File source = item.getFile();
+				file = TransferSyntaxConverter.convert(source, tsuid);
+				if (file.length() >= source.length()) {
+					file.delete();
+					file = null;
+				}
+				else metrics.recordCompression(source.length(), file.length());
+			}
+			catch (Exception ex) {
+				logger.debug("Unable to compress "+item.getPath()+": "+ex.getMessage());
+				if (file != null) file.delete();
+				file = null;
+			}
+			metrics.compress.record(System.nanoTime() - start);
+			synchronized (this) {
+				if (released) {
+					if (file != null) file.delete();
+					return null;
+				}
+				compressed = file;
+			}
+			return file;
+		}
+
+		/**
+		 * Wait for the compression to finish.
+		 * @return the compressed file, or null if the item is sent as it is.
+		 */
+		public File get() {
+			try { return future.get(); }
+			catch (Exception ex) { return null; }
+		}
+
+		/**
+		 * Add a reference to the compression, unless it has already
+		 * been released by all the CompressedItems that held it.
+		 * @return true if the reference was added.
+		 */
+		public synchronized boolean retain() {
+			if (released) return false;
+			references++;
+			return true;
+		}
+
+		/**
+		 * Release a reference to the compression. When the last one is
+		 * released, the compressed file is deleted.
+		 */
+		public void release() {
+			synchronized (this) {
+				if (--references > 0) return;
+				released = true;
+				if (compressed != null) {
+					compressed.delete();
+					compressed = null;
+				}
+			}
+			if (future != null) future.cancel(false);
+		}
+	}
+}
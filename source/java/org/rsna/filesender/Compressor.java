@@ -0,0 +1,73 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.filesender;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A JVM-wide pool of threads that compress DICOM objects before
+ * they are sent. The threads are separate from the Workers, so the
+ * objects are encoded while they wait in the queue and the Workers
+ * spend their time on the network. There is one thread per processor.
+ */
+public class Compressor {
+
+	static Compressor compressor = null;
+
+	ExecutorService executor;
+
+	/**
+	 * Get the singleton instance of the compressor, creating it if necessary.
+	 * @return the compressor.
+	 */
+	public static synchronized Compressor getInstance() {
+		if (compressor == null) compressor = new Compressor();
+		return compressor;
+	}
+
+	//Protected constructor; use getInstance.
+	protected Compressor() {
+		final AtomicInteger count = new AtomicInteger();
+		executor = Executors.newFixedThreadPool(
+			Runtime.getRuntime().availableProcessors(),
+			new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "FileSender-Compressor-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					thread.setPriority(Thread.NORM_PRIORITY - 1);
+					return thread;
+				}
+			});
+	}
+
+	/**
+	 * Start compressing an item.
+	 * @param item the item, which must be a DICOM object with
+	 * an uncompressed transfer syntax.
+	 * @param tsuid the transfer syntax to compress it to.
+	 * @param metrics the metrics in which to record the compression.
+	 * @return the item to queue in place of the original.
+	 */
+	public CompressedItem compress(SendItem item, String tsuid, SendMetrics metrics) {
+		return new CompressedItem(item, submit(item, tsuid, metrics));
+	}
+
+	/**
+	 * Start a compression that can be shared by several CompressedItems.
+	 * @param item the item to compress.
+	 * @param tsuid the transfer syntax to compress it to.
+	 * @param metrics the metrics in which to record the compression.
+	 * @return the compression, with one reference.
+	 */
+	public CompressedItem.Job submit(SendItem item, String tsuid, SendMetrics metrics) {
+		CompressedItem.Job job = new CompressedItem.Job(item, tsuid, metrics);
+		job.future = executor.submit(job);
+		return job;
+	}
+}
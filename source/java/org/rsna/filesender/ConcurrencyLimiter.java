@@ -0,0 +1,123 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.filesender;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An adaptive limit on the number of files in flight to one
+ * destination, adjusted by additive increase and multiplicative
+ * decrease (AIMD) from the round-trip time of each file and the
+ * rate of RETRY results.
+ * <p>
+ * While files complete with a round-trip time near the best seen,
+ * the limit grows by one for every limit's worth of files, so it
+ * climbs toward the throughput peak. When a file returns RETRY, or
+ * the smoothed round-trip time rises to more than twice the best,
+ * the receiver is taken to be saturated and the limit is cut by
+ * 30%, at most once per round trip. The best round-trip time drifts
+ * slowly upward so that it follows a receiver whose normal latency
+ * changes.
+ */
+public class ConcurrencyLimiter {
+
+	static final Logger logger = Logger.getLogger(ConcurrencyLimiter.class);
+
+	static final double decreaseFactor = 0.7;
+	static final double latencyTolerance = 2.0;
+	static final double smoothing = 0.1;
+	static final double baselineDrift = 0.001;
+
+	int maxLimit;
+	double limit;
+	int inFlight = 0;
+	double smoothedRtt = 0;
+	double baselineRtt = 0;
+	long lastDecrease = 0;
+
+	/**
+	 * Class constructor.
+	 * @param maxLimit the maximum number of files in flight.
+	 */
+	public ConcurrencyLimiter(int maxLimit) {
+		this.maxLimit = Math.max(maxLimit, 1);
+		this.limit = Math.min(2, this.maxLimit);
+	}
+
+	/**
+	 * Wait until another file can be sent, and count it as in flight.
+	 * @throws InterruptedException if the thread is interrupted while waiting.
+	 */
+	public synchronized void acquire() throws InterruptedException {
+		while (inFlight >= (int)limit) wait();
+		inFlight++;
+	}
+
+	/**
+	 * Count another file as in flight if that can be done without waiting.
+	 * @return true if the file was counted; false if the limit has been reached.
+	 */
+	public synchronized boolean tryAcquire() {
+		if (inFlight >= (int)limit) return false;
+		inFlight++;
+		return true;
+	}
+
+	/**
+	 * Record the completion of a file and adjust the limit.
+	 * @param rtt the round-trip time of the file in ms.
+	 * @param overloaded true if the destination asked for the file
+	 * to be retried or could not be reached.
+	 */
+	public synchronized void release(long rtt, boolean overloaded) {
+		boolean saturated = inFlight >= (int)limit;
+		inFlight--;
+		long now = System.currentTimeMillis();
+		if (!overloaded) {
+			smoothedRtt = (smoothedRtt == 0) ? rtt : smoothedRtt + smoothing * (rtt - smoothedRtt);
+			if ((baselineRtt == 0) || (smoothedRtt < baselineRtt)) baselineRtt = smoothedRtt;
+			else baselineRtt += baselineDrift * (smoothedRtt - baselineRtt);
+		}
+		boolean degraded = overloaded || (smoothedRtt > latencyTolerance * Math.max(baselineRtt, 1));
+		if (degraded) {
+			if (now - lastDecrease > smoothedRtt) {
+				limit = Math.max(1, limit * decreaseFactor);
+				lastDecrease = now;
+				logger.debug("Concurrency limit decreased to "+limit);
+			}
+		}
+		else if (saturated && (limit < maxLimit)) {
+			limit = Math.min(maxLimit, limit + 1.0 / limit);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Get the current limit.
+	 * @return the number of files that may be in flight.
+	 */
+	public synchronized int getLimit() {
+		return (int)limit;
+	}
+
+	/**
+	 * Get the number of files in flight.
+	 * @return the number of files acquired and not yet released.
+	 */
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * Get the smoothed round-trip time.
+	 * @return the smoothed round-trip time in ms.
+	 */
+	public synchronized double getRtt() {
+		return smoothedRtt;
+	}
+}
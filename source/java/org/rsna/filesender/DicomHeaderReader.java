@@ -0,0 +1,291 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.filesender;
+
+import java.io.*;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A lightweight reader for the values of a few elements at the start
+ * of a DICOM file. It parses only as far as the last element requested
+ * and never reads pixel data, and it allocates only the values it
+ * returns. It handles files with and without a Part 10 preamble,
+ * explicit and implicit VR, little and big endian, deflated transfer
+ * syntaxes, and sequences of defined and undefined length.
+ * <p>
+ * The reader is meant as a fast path: if a file cannot be parsed,
+ * it returns null, and the caller can fall back to a DicomObject.
+ */
+public class DicomHeaderReader {
+
+	/** The TransferSyntaxUID element. */
+	public static final int TransferSyntaxUID = 0x00020010;
+	/** The SOPClassUID element. */
+	public static final int SOPClassUID = 0x00080016;
+	/** The SOPInstanceUID element. */
+	public static final int SOPInstanceUID = 0x00080018;
+	/** The StudyInstanceUID element. */
+	public static final int StudyInstanceUID = 0x0020000D;
+	/** The SeriesInstanceUID element. */
+	public static final int SeriesInstanceUID = 0x0020000E;
+
+	static final String ImplicitVRLittleEndian = "1.2.840.10008.1.2";
+	static final String ExplicitVRBigEndian = "1.2.840.10008.1.2.2";
+	static final String DeflatedExplicitVRLittleEndian = "1.2.840.10008.1.2.1.99";
+
+	static final int ItemTag = 0xFFFEE000;
+	static final int ItemDelimitationTag = 0xFFFEE00D;
+	static final int SequenceDelimitationTag = 0xFFFEE0DD;
+	static final int PixelDataTag = 0x7FE00010;
+	static final int undefinedLength = -1;
+	static final int maxValueLength = 64 * 1024;
+
+	InputStream in;
+	boolean explicit = true;
+	boolean bigEndian = false;
+	byte[] b8 = new byte[8];
+
+	/**
+	 * Get the SOPInstanceUID of a DICOM file.
+	 * @param file the file.
+	 * @return the SOPInstanceUID, or null if the file cannot be parsed
+	 * or does not contain the element.
+	 */
+	public static String getSOPInstanceUID(File file) {
+		String[] values = getElements(file, new int[] { SOPInstanceUID });
+		return (values != null) ? values[0] : null;
+	}
+
+	/**
+	 * Get the values of elements at the top level of a DICOM file,
+	 * as strings with trailing padding removed. Group 0002 elements
+	 * may be requested.
+	 * @param file the file.
+	 * @param tags the tags of the elements, in ascending order.
+	 * @return the values, with null for elements that are not present,
+	 * or null if the file cannot be parsed.
+	 */
+	public static String[] getElements(File file, int[] tags) {
+		InputStream is = null;
+		try {
+			is = new FileInputStream(file);
+			return getElements(is, tags);
+		}
+		catch (Exception ex) { return null; }
+		finally {
+			if (is != null) {
+				try { is.close(); }
+				catch (Exception ignore) { }
+			}
+		}
+	}
+
+	/**
+	 * Get the values of elements at the top level of a DICOM object
+	 * read from a stream. The stream is not closed.
+	 * @param in the stream, positioned at the start of the object.
+	 * @param tags the tags of the elements, in ascending order.
+	 * @return the values, with null for elements that are not present,
+	 * or null if the object cannot be parsed.
+	 */
+	public static String[] getElements(InputStream in, int[] tags) {
+		try { return new DicomHeaderReader(new BufferedInputStream(in, 8192)).read(tags); }
+		catch (Exception ex) { return null; }
+	}
+
+	//Private constructor; use the static methods.
+	private DicomHeaderReader(InputStream in) {
+		this.in = in;
+	}
+
+	private String[] read(int[] tags) throws IOException {
+		String[] values = new String[tags.length];
+		int maxTag = tags[tags.length - 1];
+		String tsuid = null;
+
+		//Look for the preamble. If it is missing, guess
+		//the encoding from the first element.
+		in.mark(132);
+		boolean part10 = (in.skip(128) == 128) && readFully(b8, 4)
+							&& (b8[0] == 'D') && (b8[1] == 'I') && (b8[2] == 'C') && (b8[3] == 'M');
+		if (part10) {
+			//The File Meta Information is always explicit VR little endian.
+			while (true) {
+				in.mark(8);
+				if (!readFully(b8, 4)) return values;
+				int tag = getTag(b8, 0);
+				if ((tag >>> 16) != 0x0002) {
+					in.reset();
+					break;
+				}
+				int length = readLength(tag);
+				if (tag == TransferSyntaxUID) {
+					tsuid = readString(length);
+					for (int i=0; i<tags.length; i++) {
+						if (tags[i] == tag) values[i] = tsuid;
+					}
+				}
+				else readValue(tag, length, tags, values);
+			}
+			if (tsuid == null) tsuid = "";
+			if (tsuid.equals(ImplicitVRLittleEndian)) explicit = false;
+			else if (tsuid.equals(ExplicitVRBigEndian)) bigEndian = true;
+			else if (tsuid.equals(DeflatedExplicitVRLittleEndian)) {
+				in = new BufferedInputStream(new InflaterInputStream(in, new Inflater(true)), 8192);
+			}
+		}
+		else {
+			in.reset();
+			in.mark(8);
+			if (!readFully(b8, 6)) return null;
+			explicit = Character.isUpperCase(b8[4]) && Character.isUpperCase(b8[5]);
+			//Groups are less than 0x0100 at the start of a dataset, so a
+			//first group with a zero low byte is big endian. Big endian is
+			//always explicit VR. Anything else that does not look like a
+			//first element is left to the caller's full parse.
+			bigEndian = (b8[0] == 0) && (b8[1] != 0);
+			int group = getShort(b8, 0);
+			if ((bigEndian && !explicit) || ((group & 1) != 0) || (group < 0x0002) || (group > 0x7FE0)) {
+				return null;
+			}
+			in.reset();
+		}
+
+		//Parse the top level of the dataset.
+		while (true) {
+			if (!readFully(b8, 4)) return values;
+			int tag = getTag(b8, 0);
+			if (((tag ^ 0x80000000) > (maxTag ^ 0x80000000)) || (tag == PixelDataTag)) return values;
+			int length = readLength(tag);
+			if (length == undefinedLength) skipUndefined();
+			else readValue(tag, length, tags, values);
+		}
+	}
+
+	//Read the VR (if explicit) and length of the element whose tag
+	//has just been read, leaving the VR in b8[4..5].
+	private int readLength(int tag) throws IOException {
+		if ((tag >>> 16) == 0xFFFE) {
+			if (!readFully(b8, 4)) throw new EOFException();
+			return getInt(b8, 0);
+		}
+		if (explicit || ((tag >>> 16) == 0x0002)) {
+			if (!readFully(b8, 4)) throw new EOFException();
+			b8[4] = b8[0];
+			b8[5] = b8[1];
+			if (hasLongLength(b8[4], b8[5])) {
+				if (!readFully(b8, 4)) throw new EOFException();
+				return getInt(b8, 0);
+			}
+			return getShort(b8, 2);
+		}
+		b8[4] = 0;
+		b8[5] = 0;
+		if (!readFully(b8, 4)) throw new EOFException();
+		return getInt(b8, 0);
+	}
+
+	//Read or skip a value of defined length. If the tag is one of
+	//the requested tags, store the value.
+	private void readValue(int tag, int length, int[] tags, String[] values) throws IOException {
+		if (length < 0) throw new IOException("Bad length");
+		for (int i=0; i<tags.length; i++) {
+			if ((tags[i] == tag) && (length <= maxValueLength)) {
+				values[i] = readString(length);
+				return;
+			}
+		}
+		skip(length);
+	}
+
+	//Read a string value, removing trailing padding.
+	private String readString(int length) throws IOException {
+		if ((length < 0) || (length > maxValueLength)) throw new IOException("Bad length");
+		byte[] bytes = new byte[length];
+		if (!readFully(bytes, length)) throw new EOFException();
+		int n = length;
+		while ((n > 0) && ((bytes[n-1] == 0) || (bytes[n-1] == ' '))) n--;
+		return new String(bytes, 0, n, "ISO-8859-1");
+	}
+
+	//Skip the items of a sequence (or other element) of undefined length.
+	//Elements within a VR=UN sequence of undefined length are implicit VR.
+	private void skipUndefined() throws IOException {
+		boolean wasExplicit = explicit;
+		if (explicit && (b8[4] == 'U') && (b8[5] == 'N')) explicit = false;
+		try {
+			while (true) {
+				if (!readFully(b8, 8)) throw new EOFException();
+				int tag = getTag(b8, 0);
+				int length = getInt(b8, 4);
+				if (tag == SequenceDelimitationTag) return;
+				if (tag == ItemTag) {
+					if (length == undefinedLength) skipItem();
+					else skip(length);
+				}
+				else if (length != undefinedLength) skip(length);
+				else throw new IOException("Unexpected element in sequence");
+			}
+		}
+		finally { explicit = wasExplicit; }
+	}
+
+	//Skip the elements of an item of undefined length.
+	private void skipItem() throws IOException {
+		while (true) {
+			if (!readFully(b8, 4)) throw new EOFException();
+			int tag = getTag(b8, 0);
+			int length = readLength(tag);
+			if (tag == ItemDelimitationTag) return;
+			if (length == undefinedLength) skipUndefined();
+			else skip(length);
+		}
+	}
+
+	private static boolean hasLongLength(byte v0, byte v1) {
+		return ((v0 == 'O') && ((v1 == 'B') || (v1 == 'W') || (v1 == 'F') || (v1 == 'D') || (v1 == 'L') || (v1 == 'V')))
+			|| ((v0 == 'S') && ((v1 == 'Q') || (v1 == 'V')))
+			|| ((v0 == 'U') && ((v1 == 'T') || (v1 == 'N') || (v1 == 'C') || (v1 == 'R') || (v1 == 'V')));
+	}
+
+	private int getTag(byte[] b, int k) {
+		return (getShort(b, k) << 16) | getShort(b, k+2);
+	}
+
+	private int getShort(byte[] b, int k) {
+		if (bigEndian) return ((b[k] & 0xff) << 8) | (b[k+1] & 0xff);
+		return ((b[k+1] & 0xff) << 8) | (b[k] & 0xff);
+	}
+
+	private int getInt(byte[] b, int k) {
+		if (bigEndian) return (getShort(b, k) << 16) | getShort(b, k+2);
+		return (getShort(b, k+2) << 16) | getShort(b, k);
+	}
+
+	private boolean readFully(byte[] b, int len) throws IOException {
+		int off = 0;
+		while (off < len) {
+			int n = in.read(b, off, len - off);
+			if (n == -1) return false;
+			off += n;
+		}
+		return true;
+	}
+
+	private void skip(long n) throws IOException {
+		while (n > 0) {
+			long k = in.skip(n);
+			if (k <= 0) {
+				if (in.read() == -1) throw new EOFException();
+				k = 1;
+			}
+			n -= k;
+		}
+	}
+}
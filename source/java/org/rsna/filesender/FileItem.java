@@ -0,0 +1,65 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.filesender;
+
+import java.io.*;
+
+/**
+ * A SendItem for a file on disk.
+ */
+public class FileItem extends SendItem {
+
+	File file;
+
+	/**
+	 * Class constructor.
+	 * @param file the file to send.
+	 */
+	public FileItem(File file) {
+		this.file = file;
+	}
+
+	public String getName() {
+		return file.getName();
+	}
+
+	public String getPath() {
+		return file.getAbsolutePath();
+	}
+
+	public long getLength() {
+		return file.length();
+	}
+
+	/**
+	 * Get the length of the file now, which is the number of bytes
+	 * that copyTo sends, even if the file has changed since it was
+	 * found. The length is read from the file system on each call.
+	 * @return the length of the file in bytes.
+	 */
+	public long getContentLength() {
+		return new File(file.getPath()).length();
+	}
+
+	public long getLastModified() {
+		return file.lastModified();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public long copyTo(OutputStream out, boolean nio) throws IOException {
+		return FileStreamer.getInstance().copy(file, out, nio);
+	}
+
+	public void delete() {
+		file.delete();
+	}
+
+}
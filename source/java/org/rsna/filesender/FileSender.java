@@ -31,7 +31,14 @@ public class FileSender extends JFrame {
 	RightPanel rightPanel;
 	static Logger logger = null;
 
+	/**
+	 * Start the FileSender. With no arguments, the GUI is displayed.
+	 * With arguments, the files are sent without a GUI, as described
+	 * by the CommandLineSender, and the program exits with its exit code.
+	 * @param args the command-line arguments.
+	 */
 	public static void main(String args[]) {
+		if (args.length > 0) System.setProperty("java.awt.headless", "true");
 		File logProps = new File("log4j.properties");
 		String propsPath = logProps.getAbsolutePath();
 		if (!logProps.exists()) {
@@ -40,7 +47,8 @@ public class FileSender extends JFrame {
 		}
 		PropertyConfigurator.configure(propsPath);
 		logger = Logger.getLogger(FileSender.class);
-		
+
+		if (args.length > 0) System.exit(CommandLineSender.run(args));
 		new FileSender();
 	}
 
@@ -0,0 +1,199 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.filesender;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A class for copying files to output streams. Each thread has its
+ * own instance, with its own buffer, obtained by calling getInstance.
+ * <p>
+ * In NIO mode, the file is read through its FileChannel into a large
+ * buffer, and each buffer is written to the output stream in a single
+ * call, so a large file is moved in a few hundred reads and writes
+ * instead of hundreds of thousands, with no intermediate buffered
+ * streams. In stream mode, the file is copied through buffered
+ * streams with a small buffer, as FileSender always did.
+ * <p>
+ * The time spent reading the source and writing the output stream
+ * is accumulated separately, so the caller can tell whether a copy
+ * was limited by the disk or by the network.
+ */
+public class FileStreamer {
+
+	static final int bufferSize = 256 * 1024;
+	static final int streamBufferSize = 1024;
+
+	static final ThreadLocal<FileStreamer> streamers = new ThreadLocal<FileStreamer>() {
+		protected FileStreamer initialValue() {
+			return new FileStreamer();
+		}
+	};
+
+	ByteBuffer buffer;
+	long readTime = 0;
+	long writeTime = 0;
+
+	/**
+	 * Get the FileStreamer for the current thread.
+	 * @return the FileStreamer.
+	 */
+	public static FileStreamer getInstance() {
+		return streamers.get();
+	}
+
+	/**
+	 * Clear the accumulated read and write times.
+	 */
+	public void resetTimes() {
+		readTime = 0;
+		writeTime = 0;
+	}
+
+	/**
+	 * Get the time spent reading since the times were last cleared.
+	 * @return the time in nanoseconds.
+	 */
+	public long getReadTime() {
+		return readTime;
+	}
+
+	/**
+	 * Get the time spent writing since the times were last cleared.
+	 * @return the time in nanoseconds.
+	 */
+	public long getWriteTime() {
+		return writeTime;
+	}
+
+	//Private constructor; use getInstance.
+	private FileStreamer() {
+		buffer = ByteBuffer.allocate(bufferSize);
+	}
+
+	/**
+	 * Copy a file to an output stream. The output stream is flushed
+	 * but not closed.
+	 * @param file the file to copy.
+	 * @param out the stream to receive the file.
+	 * @param nio true to copy through the file's channel; false to copy
+	 * through buffered streams.
+	 * @return the number of bytes copied.
+	 * @throws IOException if the file cannot be read or the stream cannot be written.
+	 */
+	public long copy(File file, OutputStream out, boolean nio) throws IOException {
+		if (nio) return copyChannel(file, out);
+		return copyStream(file, out);
+	}
+
+	/**
+	 * Copy an input stream to an output stream through the large buffer.
+	 * The output stream is flushed but neither stream is closed.
+	 * @param in the stream to copy.
+	 * @param out the stream to receive the data.
+	 * @return the number of bytes copied.
+	 * @throws IOException if either stream fails.
+	 */
+	public long copy(InputStream in, OutputStream out) throws IOException {
+		byte[] b = buffer.array();
+		long total = 0;
+		int n;
+		long t0 = System.nanoTime();
+		while ((n = in.read(b, 0, b.length)) != -1) {
+			long t1 = System.nanoTime();
+			out.write(b, 0, n);
+			total += n;
+			long t2 = System.nanoTime();
+			readTime += t1 - t0;
+			writeTime += t2 - t1;
+			t0 = t2;
+		}
+		long t1 = System.nanoTime();
+		readTime += t1 - t0;
+		out.flush();
+		writeTime += System.nanoTime() - t1;
+		return total;
+	}
+
+	/**
+	 * Read an input stream to the end, discarding the data.
+	 * The stream is not closed.
+	 * @param in the stream.
+	 * @return the number of bytes read.
+	 * @throws IOException if the stream fails.
+	 */
+	public long drain(InputStream in) throws IOException {
+		byte[] b = buffer.array();
+		long total = 0;
+		int n;
+		while ((n = in.read(b, 0, b.length)) != -1) total += n;
+		return total;
+	}
+
+	//Copy through the file's channel into the large buffer.
+	private long copyChannel(File file, OutputStream out) throws IOException {
+		FileInputStream fis = new FileInputStream(file);
+		FileChannel channel = fis.getChannel();
+		byte[] b = buffer.array();
+		long total = 0;
+		try {
+			int n;
+			buffer.clear();
+			long t0 = System.nanoTime();
+			while ((n = channel.read(buffer)) != -1) {
+				long t1 = System.nanoTime();
+				readTime += t1 - t0;
+				if (n > 0) {
+					out.write(b, 0, buffer.position());
+					total += buffer.position();
+					buffer.clear();
+				}
+				t0 = System.nanoTime();
+				writeTime += t0 - t1;
+			}
+			long t1 = System.nanoTime();
+			readTime += t1 - t0;
+			out.flush();
+			writeTime += System.nanoTime() - t1;
+			return total;
+		}
+		finally {
+			channel.close();
+			fis.close();
+		}
+	}
+
+	//Copy through buffered streams with a small buffer.
+	private long copyStream(File file, OutputStream out) throws IOException {
+		BufferedInputStream fis = new BufferedInputStream( new FileInputStream(file) );
+		BufferedOutputStream bos = new BufferedOutputStream(out);
+		long total = 0;
+		try {
+			int n;
+			byte[] bbuf = new byte[streamBufferSize];
+			long t0 = System.nanoTime();
+			while ((n=fis.read(bbuf,0,bbuf.length)) > 0) {
+				long t1 = System.nanoTime();
+				bos.write(bbuf,0,n);
+				total += n;
+				long t2 = System.nanoTime();
+				readTime += t1 - t0;
+				writeTime += t2 - t1;
+				t0 = t2;
+			}
+			long t1 = System.nanoTime();
+			readTime += t1 - t0;
+			bos.flush();
+			writeTime += System.nanoTime() - t1;
+			return total;
+		}
+		finally { fis.close(); }
+	}
+}
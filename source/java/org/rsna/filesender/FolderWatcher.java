@@ -0,0 +1,213 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.filesender;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * A watcher for files arriving in a directory, and optionally in
+ * its subdirectories, using the platform's file change notifications
+ * instead of rescanning the directory tree.
+ * <p>
+ * A new or modified file is only reported when it is stable: when its
+ * size and last-modified time have not changed for the stable time,
+ * so files that are still being written are not sent. Each version
+ * of a file is reported once; a file is reported again only if it is
+ * modified, or deleted and created again. The files already in the
+ * directories when the watcher starts are reported like new files.
+ */
+public class FolderWatcher {
+
+	static final Logger logger = Logger.getLogger(FolderWatcher.class);
+
+	File root;
+	FileFilter filter;
+	boolean subdirectories;
+	long stableTime;
+	WatchService watchService;
+	Hashtable<WatchKey,Path> keys = new Hashtable<WatchKey,Path>();
+	HashMap<File,Candidate> candidates = new HashMap<File,Candidate>();
+	HashMap<File,Long> reported = new HashMap<File,Long>();
+
+	/**
+	 * Start watching a directory.
+	 * @param root the directory to watch.
+	 * @param filter the filter selecting the files to report.
+	 * @param subdirectories true to watch the subdirectories as well,
+	 * including those created while the watcher is running.
+	 * @param stableTime the time in ms for which a file must not change
+	 * before it is reported.
+	 * @throws IOException if the directory cannot be watched.
+	 */
+	public FolderWatcher(File root, FileFilter filter, boolean subdirectories, long stableTime)
+			throws IOException {
+		this.root = root;
+		this.filter = filter;
+		this.subdirectories = subdirectories;
+		this.stableTime = Math.max(stableTime, 0);
+		watchService = FileSystems.getDefault().newWatchService();
+		register(root);
+	}
+
+	/**
+	 * Wait for change notifications and get the files that have become
+	 * stable since the last call.
+	 * @param timeout the maximum time to wait for a notification, in ms.
+	 * @return the stable files, which may be empty.
+	 * @throws InterruptedException if the thread is interrupted while waiting.
+	 */
+	public List<File> poll(long timeout) throws InterruptedException {
+		WatchKey key = watchService.poll(timeout, TimeUnit.MILLISECONDS);
+		while (key != null) {
+			process(key);
+			key = watchService.poll();
+		}
+		return getStableFiles();
+	}
+
+	/**
+	 * Get the number of files seen that are not yet stable.
+	 * @return the number of files waiting to settle.
+	 */
+	public int getPendingCount() {
+		return candidates.size();
+	}
+
+	/**
+	 * Stop watching.
+	 */
+	public void close() {
+		try { watchService.close(); }
+		catch (IOException ex) { logger.warn("Unable to close the watch service for "+root, ex); }
+	}
+
+	//Handle the events for one directory.
+	private void process(WatchKey key) {
+		Path dir = keys.get(key);
+		for (WatchEvent<?> event : key.pollEvents()) {
+			WatchEvent.Kind<?> kind = event.kind();
+			if (kind == OVERFLOW) {
+				//Events were lost; look at everything again.
+				logger.info("Watch events were lost; rescanning "+root);
+				rescan();
+				continue;
+			}
+			if (dir == null) continue;
+			File file = dir.resolve((Path)event.context()).toFile();
+			if (kind == ENTRY_DELETE) {
+				candidates.remove(file);
+				reported.remove(file);
+			}
+			else if (file.isDirectory()) {
+				if (subdirectories && (kind == ENTRY_CREATE)) register(file);
+			}
+			else consider(file);
+		}
+		if (!key.reset()) keys.remove(key);
+	}
+
+	//Watch a directory, and its subdirectories if required, and
+	//consider the files already in it.
+	private void register(File dir) {
+		try {
+			WatchKey key = dir.toPath().register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+			keys.put(key, dir.toPath());
+		}
+		catch (IOException ex) {
+			logger.warn("Unable to watch "+dir, ex);
+			return;
+		}
+		File[] files = dir.listFiles();
+		if (files == null) return;
+		for (File file : files) {
+			if (file.isDirectory()) {
+				if (subdirectories) register(file);
+			}
+			else consider(file);
+		}
+	}
+
+	//Consider all the files in the registered directories again.
+	private void rescan() {
+		for (Path dir : keys.values()) {
+			File[] files = dir.toFile().listFiles();
+			if (files == null) continue;
+			for (File file : files) {
+				if (!file.isDirectory()) consider(file);
+			}
+		}
+	}
+
+	//Start tracking a file that may need to be reported.
+	private void consider(File file) {
+		if (!filter.accept(file)) return;
+		if (!candidates.containsKey(file)) {
+			candidates.put(file, new Candidate(file));
+		}
+	}
+
+	//Get the tracked files that have not changed for the stable time.
+	private List<File> getStableFiles() {
+		LinkedList<File> stable = new LinkedList<File>();
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<File,Candidate>> it = candidates.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<File,Candidate> entry = it.next();
+			File file = entry.getKey();
+			Candidate candidate = entry.getValue();
+			if (!file.exists()) {
+				it.remove();
+				continue;
+			}
+			if (candidate.update(now) && (now - candidate.lastChange >= stableTime)) {
+				it.remove();
+				Long lastReported = reported.get(file);
+				if ((lastReported == null) || (lastReported.longValue() != candidate.lastModified)) {
+					reported.put(file, Long.valueOf(candidate.lastModified));
+					stable.add(file);
+				}
+			}
+		}
+		return stable;
+	}
+
+	//The observed state of a file that is being tracked.
+	class Candidate {
+		File file;
+		long length;
+		long lastModified;
+		long lastChange;
+
+		Candidate(File file) {
+			this.file = file;
+			length = file.length();
+			lastModified = file.lastModified();
+			lastChange = System.currentTimeMillis();
+		}
+
+		//Look at the file again, returning true if it
+		//has not changed since it was last observed.
+		boolean update(long now) {
+			long len = file.length();
+			long lm = file.lastModified();
+			if ((len != length) || (lm != lastModified)) {
+				length = len;
+				lastModified = lm;
+				lastChange = now;
+				return false;
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,172 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.filesender;
+
+import java.io.*;
+import java.net.*;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.Semaphore;
+import javax.net.ssl.*;
+import org.apache.log4j.Logger;
+import org.rsna.util.AcceptAllX509TrustManager;
+import org.rsna.util.HttpUtil;
+
+/**
+ * Static methods for obtaining and releasing HTTP and HTTPS connections
+ * so that the JDK can keep them alive and reuse them for later files.
+ * <p>
+ * HttpUtil creates a new SSLContext for every HTTPS connection, which
+ * prevents the reuse of both the connection and the TLS session. This
+ * class substitutes one shared SSLSocketFactory (which still accepts
+ * all certificates), so connections to the same host are reused from
+ * the JDK's keep-alive cache and new connections resume the cached
+ * TLS session instead of doing a full handshake.
+ * <p>
+ * The number of connections open to any one host is capped. Callers
+ * must acquire one of the host's permits before each request and
+ * release it afterwards. The cap can be changed while files are being
+ * sent; the permits of each host are resized in place.
+ */
+public class HttpTransport {
+
+	static final Logger logger = Logger.getLogger(HttpTransport.class);
+
+	static final int defaultMaxConnections = 8;
+	static int maxConnectionsPerHost = defaultMaxConnections;
+	static SSLSocketFactory sslSocketFactory = null;
+	static Hashtable<String,HostPermits> hosts = new Hashtable<String,HostPermits>();
+
+	static {
+		//These are read by the JDK when the first connection is made.
+		System.setProperty("http.keepAlive", "true");
+		if (System.getProperty("http.maxConnections") == null) {
+			System.setProperty("http.maxConnections", Integer.toString(defaultMaxConnections));
+		}
+	}
+
+	/**
+	 * Set the maximum number of connections open to any one host.
+	 * The permits of the hosts already in use are resized at once; if
+	 * the cap is lowered, the requests in progress finish, and no new
+	 * request starts until the number in progress is below the new cap.
+	 * The JDK reads the size of its keep-alive cache when the first
+	 * connection is made, so if the cap is raised after that, the
+	 * connections above the old cap are closed after each request
+	 * instead of being kept alive.
+	 * @param max the maximum number of connections.
+	 */
+	public static synchronized void setMaxConnectionsPerHost(int max) {
+		maxConnectionsPerHost = Math.max(max, 1);
+		System.setProperty("http.maxConnections", Integer.toString(maxConnectionsPerHost));
+		for (HostPermits permits : hosts.values()) permits.resize(maxConnectionsPerHost);
+	}
+
+	/**
+	 * Get the maximum number of connections open to any one host.
+	 * @return the maximum number of connections.
+	 */
+	public static synchronized int getMaxConnectionsPerHost() {
+		return maxConnectionsPerHost;
+	}
+
+	/**
+	 * Get a connection to a URL, with the shared SSLSocketFactory
+	 * if the protocol is HTTPS.
+	 * @param url the URL.
+	 * @return the connection, which has not yet been connected.
+	 * @throws Exception if the connection cannot be created.
+	 */
+	public static HttpURLConnection getConnection(URL url) throws Exception {
+		HttpURLConnection conn = HttpUtil.getConnection(url);
+		if (conn instanceof HttpsURLConnection) {
+			((HttpsURLConnection)conn).setSSLSocketFactory(getSSLSocketFactory());
+		}
+		return conn;
+	}
+
+	/**
+	 * Finish with a connection whose response has been read, leaving
+	 * the underlying socket available for reuse. Any unread response
+	 * body is drained, since the JDK only reuses a connection whose
+	 * response has been read to the end.
+	 * @param conn the connection.
+	 * @param keepAlive true if the socket is to be kept for reuse;
+	 * false if it is to be closed.
+	 */
+	public static void close(HttpURLConnection conn, boolean keepAlive) {
+		if (!keepAlive) {
+			conn.disconnect();
+			return;
+		}
+		InputStream is = null;
+		try { is = conn.getInputStream(); }
+		catch (Exception ex) { is = conn.getErrorStream(); }
+		if (is != null) {
+			try {
+				FileStreamer.getInstance().drain(is);
+				is.close();
+			}
+			catch (Exception ex) { conn.disconnect(); }
+		}
+	}
+
+	/**
+	 * Get the key of the host of a URL, for getPermits.
+	 * @param url the URL.
+	 * @return the key.
+	 */
+	public static String getHostKey(URL url) {
+		return url.getProtocol() + "://" + url.getHost() + ":" + url.getPort();
+	}
+
+	/**
+	 * Get the permits for connections to a host. There are as
+	 * many permits as the maximum number of connections per host.
+	 * Callers must get the permits for each request, since the
+	 * number can change.
+	 * @param key the key of the host, as returned by getHostKey.
+	 * @return the permits for the host.
+	 */
+	public static synchronized Semaphore getPermits(String key) {
+		HostPermits permits = hosts.get(key);
+		if (permits == null) {
+			permits = new HostPermits(maxConnectionsPerHost);
+			hosts.put(key, permits);
+		}
+		return permits;
+	}
+
+	private static synchronized SSLSocketFactory getSSLSocketFactory() throws Exception {
+		if (sslSocketFactory == null) {
+			TrustManager[] trustAllCerts = new TrustManager[] { new AcceptAllX509TrustManager() };
+			SSLContext sc = SSLContext.getInstance("SSL");
+			sc.init(null, trustAllCerts, new SecureRandom());
+			sslSocketFactory = sc.getSocketFactory();
+		}
+		return sslSocketFactory;
+	}
+
+	//The permits for one host, whose number can be changed while they
+	//are in use. Lowering the number takes effect as permits are released.
+	static class HostPermits extends Semaphore {
+		static final long serialVersionUID = 1L;
+		int size;
+
+		HostPermits(int size) {
+			super(size, true);
+			this.size = size;
+		}
+
+		synchronized void resize(int newSize) {
+			if (newSize > size) release(newSize - size);
+			else if (newSize < size) reducePermits(size - newSize);
+			size = newSize;
+		}
+	}
+}
@@ -0,0 +1,122 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.filesender;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies with power-of-two buckets in microseconds,
+ * from under 1 microsecond to over a minute. Recording a value is one
+ * atomic increment, with no lock, so it can be done for every file on
+ * every Worker. Percentiles are estimated from the buckets, so they are
+ * accurate to within a factor of two, which is enough to tell which
+ * phase of a transfer is taking the time.
+ */
+public class LatencyHistogram {
+
+	static final int buckets = 28;
+
+	String name;
+	AtomicLongArray counts = new AtomicLongArray(buckets);
+	AtomicLongArray totals = new AtomicLongArray(2); //count, sum in microseconds
+	volatile long max = 0;
+
+	/**
+	 * Class constructor.
+	 * @param name the name of the phase being measured.
+	 */
+	public LatencyHistogram(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Get the name of the histogram.
+	 * @return the name.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Record a latency.
+	 * @param nanos the latency in nanoseconds.
+	 */
+	public void record(long nanos) {
+		long micros = Math.max(nanos / 1000, 0);
+		int k = 64 - Long.numberOfLeadingZeros(micros);
+		counts.incrementAndGet(Math.min(k, buckets - 1));
+		totals.incrementAndGet(0);
+		totals.addAndGet(1, micros);
+		if (micros > max) max = micros;
+	}
+
+	/**
+	 * Get the number of latencies recorded.
+	 * @return the count.
+	 */
+	public long getCount() {
+		return totals.get(0);
+	}
+
+	/**
+	 * Get the mean latency.
+	 * @return the mean in ms, or zero if nothing has been recorded.
+	 */
+	public double getMean() {
+		long n = totals.get(0);
+		return (n == 0) ? 0 : totals.get(1) / 1000.0 / n;
+	}
+
+	/**
+	 * Get the maximum latency.
+	 * @return the maximum in ms.
+	 */
+	public double getMax() {
+		return max / 1000.0;
+	}
+
+	/**
+	 * Estimate a percentile of the latencies, as the upper bound
+	 * of the bucket that contains it.
+	 * @param percent the percentile, from 0 to 100.
+	 * @return the estimate in ms, or zero if nothing has been recorded.
+	 */
+	public double getPercentile(double percent) {
+		long n = 0;
+		long[] c = new long[buckets];
+		for (int i=0; i<buckets; i++) n += (c[i] = counts.get(i));
+		if (n == 0) return 0;
+		long rank = (long)Math.ceil(n * percent / 100.0);
+		long seen = 0;
+		for (int i=0; i<buckets; i++) {
+			seen += c[i];
+			if (seen >= rank) return Math.min((1L << i), Math.max(max, 1)) / 1000.0;
+		}
+		return getMax();
+	}
+
+	/**
+	 * Clear the histogram.
+	 */
+	public void reset() {
+		for (int i=0; i<buckets; i++) counts.set(i, 0);
+		totals.set(0, 0);
+		totals.set(1, 0);
+		max = 0;
+	}
+
+	/**
+	 * Get a one-line summary of the histogram.
+	 * @return the count, mean, 50th, 90th and 99th percentiles, and maximum.
+	 */
+	public String toString() {
+		return String.format("%s: n=%d mean=%.2fms p50=%.2fms p90=%.2fms p99=%.2fms max=%.2fms",
+				name, getCount(), getMean(),
+				getPercentile(50), getPercentile(90), getPercentile(99), getMax());
+	}
+}
@@ -0,0 +1,198 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.filesender;
+
+import java.net.Socket;
+import java.util.*;
+import org.apache.log4j.Logger;
+import org.dcm4che.net.*;
+
+/**
+ * A JVM-wide record of the presentation contexts that DICOM
+ * destinations have accepted and rejected, keyed by destination
+ * (as in the AssociationPool), SOP class, and transfer syntax.
+ * <p>
+ * A pair is recorded as accepted when a file is stored with it. When
+ * a file fails with a pair that is not known to be accepted, the
+ * destination is probed with an association that proposes the pair and
+ * the uncompressed transfer syntaxes for the same SOP class, and the
+ * result of each is recorded. The Sender then converts or skips later
+ * files with a rejected pair before it spends any association time on
+ * them. Entries expire after an hour, so a change in the configuration
+ * of a destination is noticed.
+ */
+public class PresentationContextCache {
+
+	static final Logger logger = Logger.getLogger(PresentationContextCache.class);
+
+	/** The Implicit VR Little Endian transfer syntax. */
+	public static final String ImplicitVRLittleEndian = "1.2.840.10008.1.2";
+	/** The Explicit VR Little Endian transfer syntax. */
+	public static final String ExplicitVRLittleEndian = "1.2.840.10008.1.2.1";
+	/** The Explicit VR Big Endian transfer syntax. */
+	public static final String ExplicitVRBigEndian = "1.2.840.10008.1.2.2";
+	/** The RLE Lossless transfer syntax. */
+	public static final String RLELossless = "1.2.840.10008.1.2.5";
+
+	static final String[] uncompressed = new String[] {
+		ImplicitVRLittleEndian, ExplicitVRLittleEndian, ExplicitVRBigEndian
+	};
+
+	static PresentationContextCache cache = null;
+
+	long expiry = 60 * 60 * 1000;
+	int timeout = 5000;
+	Hashtable<String,Entry> entries = new Hashtable<String,Entry>();
+
+	/**
+	 * Get the singleton instance of the cache, creating it if necessary.
+	 * @return the cache.
+	 */
+	public static synchronized PresentationContextCache getInstance() {
+		if (cache == null) cache = new PresentationContextCache();
+		return cache;
+	}
+
+	//Protected constructor; use getInstance.
+	protected PresentationContextCache() { }
+
+	/**
+	 * Determine whether a transfer syntax is uncompressed, so that
+	 * an object can be converted to and from it without a codec.
+	 * @param tsuid the transfer syntax UID.
+	 * @return true if the transfer syntax is uncompressed.
+	 */
+	public static boolean isUncompressed(String tsuid) {
+		for (String ts : uncompressed) {
+			if (ts.equals(tsuid)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Get what is known about a presentation context.
+	 * @param key the destination key, as returned by AssociationPool.getKey.
+	 * @param sopClassUID the SOP class.
+	 * @param tsuid the transfer syntax.
+	 * @return TRUE if the destination accepted the pair, FALSE if it
+	 * rejected it, or null if the pair is unknown or the entry has expired.
+	 */
+	public Boolean isAccepted(String key, String sopClassUID, String tsuid) {
+		Entry entry = entries.get(getEntryKey(key, sopClassUID, tsuid));
+		if ((entry == null) || (System.currentTimeMillis() - entry.time > expiry)) return null;
+		return entry.accepted ? Boolean.TRUE : Boolean.FALSE;
+	}
+
+	/**
+	 * Record whether a destination accepts a presentation context.
+	 * @param key the destination key.
+	 * @param sopClassUID the SOP class.
+	 * @param tsuid the transfer syntax.
+	 * @param accepted true if the pair was accepted.
+	 */
+	public void setAccepted(String key, String sopClassUID, String tsuid, boolean accepted) {
+		entries.put(getEntryKey(key, sopClassUID, tsuid), new Entry(accepted));
+	}
+
+	/**
+	 * Find an uncompressed transfer syntax to which an object with a
+	 * rejected presentation context can be converted: one that the
+	 * destination has accepted for the SOP class.
+	 * @param key the destination key.
+	 * @param sopClassUID the SOP class.
+	 * @return the transfer syntax, or null if none is known to be accepted.
+	 */
+	public String getAlternative(String key, String sopClassUID) {
+		for (String ts : uncompressed) {
+			if (Boolean.TRUE.equals(isAccepted(key, sopClassUID, ts))) return ts;
+		}
+		return null;
+	}
+
+	/**
+	 * Ask a destination which transfer syntaxes it accepts for a SOP
+	 * class, by opening an association that proposes the transfer syntax
+	 * and each uncompressed transfer syntax in separate presentation
+	 * contexts, and releasing it without sending anything. The results
+	 * are recorded.
+	 * @param key the destination key.
+	 * @param calledAET the AE Title of the destination.
+	 * @param callingAET the AE Title of the sender.
+	 * @param host the host of the destination.
+	 * @param port the port of the destination.
+	 * @param sopClassUID the SOP class.
+	 * @param tsuid the transfer syntax.
+	 * @return TRUE if the pair was accepted, FALSE if it was rejected,
+	 * or null if the association could not be negotiated.
+	 */
+	public Boolean probe(String key, String calledAET, String callingAET,
+						 String host, int port, String sopClassUID, String tsuid) {
+		AssociationFactory af = AssociationFactory.getInstance();
+		AAssociateRQ rq = af.newAAssociateRQ();
+		rq.setCalledAET(calledAET);
+		rq.setCallingAET(callingAET);
+		LinkedList<String> proposed = new LinkedList<String>();
+		proposed.add(tsuid);
+		for (String ts : uncompressed) {
+			if (!proposed.contains(ts)) proposed.add(ts);
+		}
+		int pcid = 1;
+		for (String ts : proposed) {
+			rq.addPresContext(af.newPresContext(pcid, sopClassUID, new String[] { ts }));
+			pcid += 2;
+		}
+		Socket socket = null;
+		try {
+			socket = new Socket(host, port);
+			socket.setSoTimeout(timeout);
+			Association assoc = af.newRequestor(socket);
+			assoc.setAcTimeout(timeout);
+			PDU pdu = assoc.connect(rq);
+			if (!(pdu instanceof AAssociateAC)) {
+				logger.debug("Probe of "+key+" rejected: "+pdu);
+				return null;
+			}
+			AAssociateAC ac = (AAssociateAC)pdu;
+			Boolean result = null;
+			pcid = 1;
+			for (String ts : proposed) {
+				PresContext pc = ac.getPresContext(pcid);
+				boolean accepted = (pc != null) && (pc.result() == PresContext.ACCEPTANCE);
+				setAccepted(key, sopClassUID, ts, accepted);
+				if (ts.equals(tsuid)) result = accepted ? Boolean.TRUE : Boolean.FALSE;
+				pcid += 2;
+			}
+			assoc.release(timeout);
+			return result;
+		}
+		catch (Exception ex) {
+			logger.debug("Unable to probe "+key, ex);
+			return null;
+		}
+		finally {
+			if (socket != null) {
+				try { socket.close(); }
+				catch (Exception ignore) { }
+			}
+		}
+	}
+
+	private static String getEntryKey(String key, String sopClassUID, String tsuid) {
+		return key + "|" + sopClassUID + "|" + tsuid;
+	}
+
+	//What is known about one presentation context.
+	class Entry {
+		boolean accepted;
+		long time;
+		public Entry(boolean accepted) {
+			this.accepted = accepted;
+			this.time = System.currentTimeMillis();
+		}
+	}
+}
@@ -0,0 +1,142 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.filesender;
+
+import java.util.*;
+
+/**
+ * A rate limiter for one destination, with separate budgets for
+ * files per second and bytes per second. Each budget is a token
+ * bucket that refills continuously at its rate and holds at most
+ * one second of tokens, so short bursts are allowed but the long-term
+ * rate is capped.
+ * <p>
+ * One instance is shared by all the Workers, and all the Senders,
+ * that send to the same destination. Each caller reserves its tokens
+ * and waits only until its own reservation is covered, so waiting
+ * callers are released one after another at the rate, not together.
+ * The rates can be changed while files are being sent. Waiting callers
+ * recompute their waits from the new rates at once, so raising a rate
+ * shortens their waits and removing a limit releases them.
+ */
+public class RateLimiter {
+
+	static final Hashtable<String,RateLimiter> limiters = new Hashtable<String,RateLimiter>();
+	static final long maxSleep = 100;
+
+	Bucket files = new Bucket();
+	Bucket bytes = new Bucket();
+
+	/**
+	 * Get the rate limiter for a destination, creating it if necessary.
+	 * A new limiter is unlimited.
+	 * @param destination the destination URL.
+	 * @return the limiter.
+	 */
+	public static synchronized RateLimiter getInstance(String destination) {
+		RateLimiter limiter = limiters.get(destination);
+		if (limiter == null) {
+			limiter = new RateLimiter();
+			limiters.put(destination, limiter);
+		}
+		return limiter;
+	}
+
+	/**
+	 * Set the budgets. A rate of zero or less removes the limit.
+	 * @param filesPerSecond the maximum number of files per second.
+	 * @param bytesPerSecond the maximum number of bytes per second.
+	 */
+	public synchronized void setRates(double filesPerSecond, double bytesPerSecond) {
+		files.setRate(filesPerSecond);
+		bytes.setRate(bytesPerSecond);
+		notifyAll();
+	}
+
+	/**
+	 * Get the files per second budget.
+	 * @return the rate, or zero if there is no limit.
+	 */
+	public synchronized double getFilesPerSecond() {
+		return files.rate;
+	}
+
+	/**
+	 * Get the bytes per second budget.
+	 * @return the rate, or zero if there is no limit.
+	 */
+	public synchronized double getBytesPerSecond() {
+		return bytes.rate;
+	}
+
+	/**
+	 * Take the tokens for one file, waiting until the budgets allow
+	 * it to be sent. The tokens are reserved at once, and the caller
+	 * waits until the tokens reserved before its own, and its own, have
+	 * been refilled. The wait is recomputed from the current rates each
+	 * time the caller wakes up. A file larger than a second's worth of
+	 * bytes drives the byte bucket into debt, which delays the files
+	 * that follow it until the debt is repaid.
+	 * @param length the length of the file, or a negative number if
+	 * it is unknown, in which case only the file budget applies.
+	 * @throws InterruptedException if the thread is interrupted while waiting.
+	 */
+	public synchronized void acquire(long length) throws InterruptedException {
+		long now = System.currentTimeMillis();
+		files.refill(now);
+		bytes.refill(now);
+		double fileMark = files.take(1);
+		double byteMark = (length > 0) ? bytes.take(length) : 0;
+		while (true) {
+			now = System.currentTimeMillis();
+			files.refill(now);
+			bytes.refill(now);
+			long wait = Math.max(files.getWait(fileMark), bytes.getWait(byteMark));
+			if (wait <= 0) return;
+			wait(Math.min(wait, maxSleep));
+		}
+	}
+
+	//One token bucket, which counts the tokens reserved and the
+	//tokens refilled since it was created. The difference is the
+	//number of tokens available, or the debt if it is negative.
+	//A rate of zero means unlimited.
+	class Bucket {
+		double rate = 0;
+		double taken = 0;
+		double supplied = 0;
+		long last = System.currentTimeMillis();
+
+		void setRate(double rate) {
+			refill(System.currentTimeMillis());
+			this.rate = Math.max(rate, 0);
+			supplied = Math.min(supplied, taken + this.rate);
+		}
+
+		//Refill the bucket at the current rate, holding at most one
+		//second of tokens. Without a limit, any debt is forgiven.
+		void refill(long now) {
+			if (rate > 0) supplied = Math.min(supplied + rate * (now - last) / 1000.0, taken + rate);
+			else supplied = Math.max(supplied, taken);
+			last = now;
+		}
+
+		//Reserve tokens, returning the mark that the tokens refilled
+		//must reach for the reservation to be covered.
+		double take(double n) {
+			taken += n;
+			return taken;
+		}
+
+		//Get the time in ms until a reservation is covered, at the current rate.
+		long getWait(double mark) {
+			if ((rate == 0) || (supplied >= mark)) return 0;
+			return (long)Math.ceil((mark - supplied) * 1000.0 / rate);
+		}
+	}
+}
@@ -0,0 +1,236 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.filesender;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.apache.log4j.Logger;
+
+/**
+ * A queue of items waiting to be sent again after a transient failure,
+ * with a dead-letter list for the items that have used up their attempts.
+ * <p>
+ * Each retry of an item is delayed by an exponential backoff, doubling
+ * from the base delay up to the maximum delay, with random jitter so that
+ * the items that failed together do not all come back together. The
+ * Workers take items from this queue only when their delays have expired,
+ * so retries are interleaved with new work and never hold up the
+ * traversal.
+ * <p>
+ * The dead-letter list is a text file with one path per line, named for
+ * the job's source and destination. Sending the list file itself to the
+ * same destination sends the items it lists again.
+ */
+public class RetryQueue {
+
+	static final Logger logger = Logger.getLogger(RetryQueue.class);
+
+	static final File deadLetterDir = new File("dead-letters");
+	/** The extension of dead-letter list files. */
+	public static final String deadLetterExtension = ".deadletter";
+
+	static final int defaultMaxAttempts = 5;
+	static final long defaultBaseDelay = 1000;
+	static final long defaultMaxDelay = 60000;
+
+	DelayQueue<Entry> queue = new DelayQueue<Entry>();
+	Random random = new Random();
+	int maxAttempts = defaultMaxAttempts;
+	long baseDelay = defaultBaseDelay;
+	long maxDelay = defaultMaxDelay;
+	File deadLetterFile;
+	BufferedWriter deadLetters = null;
+	int deadLetterCount = 0;
+
+	/**
+	 * Create the retry queue for a job. A dead-letter list left by
+	 * an earlier run of the same job is deleted, since the job will
+	 * send all its items again.
+	 * @param source the file or directory being sent.
+	 * @param destination the destination URL.
+	 */
+	public RetryQueue(File source, String destination) {
+		deadLetterFile = new File(deadLetterDir,
+							SendJournal.getJobName(source, destination) + deadLetterExtension);
+		if (deadLetterFile.exists() && !deadLetterFile.equals(source.getAbsoluteFile())) {
+			deadLetterFile.delete();
+		}
+	}
+
+	/**
+	 * Set the retry policy.
+	 * @param maxAttempts the maximum number of attempts for each item,
+	 * including the first.
+	 * @param baseDelay the delay before the first retry in ms.
+	 * @param maxDelay the maximum delay before any retry in ms.
+	 */
+	public void setPolicy(int maxAttempts, long baseDelay, long maxDelay) {
+		this.maxAttempts = Math.max(maxAttempts, 1);
+		this.baseDelay = Math.max(baseDelay, 0);
+		this.maxDelay = Math.max(maxDelay, this.baseDelay);
+	}
+
+	/**
+	 * Schedule an item to be sent again, or, if it has used up its
+	 * attempts, add it to the dead-letter list.
+	 * @param item the item.
+	 * @param attempts the number of attempts made so far.
+	 * @return the delay in ms before the item will be retried, or -1
+	 * if it was added to the dead-letter list.
+	 */
+	public long schedule(SendItem item, int attempts) {
+		if (attempts >= maxAttempts) {
+			addDeadLetter(item);
+			return -1;
+		}
+		//Equal jitter: half the backoff, plus a random part of the other half.
+		long backoff = Math.min(maxDelay, baseDelay << Math.min(attempts - 1, 30));
+		long delay = backoff/2 + (long)(random.nextDouble() * (backoff - backoff/2));
+		queue.put(new Entry(item, attempts, delay));
+		return delay;
+	}
+
+	/**
+	 * Get the next item whose delay has expired.
+	 * @return the entry for the item, or null if no item is due.
+	 */
+	public Entry poll() {
+		return queue.poll();
+	}
+
+	/**
+	 * Get the number of items waiting to be retried.
+	 * @return the number of items in the queue.
+	 */
+	public int size() {
+		return queue.size();
+	}
+
+	/**
+	 * Remove all the items waiting to be retried, adding them to the
+	 * dead-letter list. This is called when the job is cancelled.
+	 */
+	public void abandon() {
+		Entry entry;
+		while ((entry = queue.peek()) != null) {
+			if (queue.remove(entry)) {
+				addDeadLetter(entry.item);
+				entry.item.release();
+			}
+		}
+	}
+
+	/**
+	 * Get the dead-letter list file.
+	 * @return the file, which exists only if items were added to it.
+	 */
+	public File getDeadLetterFile() {
+		return deadLetterFile;
+	}
+
+	/**
+	 * Get the number of items added to the dead-letter list.
+	 * @return the number of items.
+	 */
+	public synchronized int getDeadLetterCount() {
+		return deadLetterCount;
+	}
+
+	/**
+	 * Flush and close the dead-letter list.
+	 */
+	public synchronized void close() {
+		if (deadLetters != null) {
+			try { deadLetters.close(); }
+			catch (IOException ex) { logger.warn("Unable to close "+deadLetterFile, ex); }
+			deadLetters = null;
+		}
+	}
+
+	//Append an item's path to the dead-letter list, creating the list if necessary.
+	private synchronized void addDeadLetter(SendItem item) {
+		deadLetterCount++;
+		try {
+			if (deadLetters == null) {
+				deadLetterDir.mkdirs();
+				deadLetters = new BufferedWriter(
+								new OutputStreamWriter(
+									new FileOutputStream(deadLetterFile, true), "UTF-8"));
+			}
+			deadLetters.write(item.getPath());
+			deadLetters.newLine();
+			deadLetters.flush();
+		}
+		catch (IOException ex) {
+			logger.warn("Unable to add "+item.getPath()+" to "+deadLetterFile, ex);
+		}
+	}
+
+	/**
+	 * Read the paths in a dead-letter list.
+	 * @param file the list file.
+	 * @return the paths, in the order they were added.
+	 * @throws IOException if the file cannot be read.
+	 */
+	public static List<String> readDeadLetters(File file) throws IOException {
+		LinkedList<String> paths = new LinkedList<String>();
+		BufferedReader reader = new BufferedReader(
+									new InputStreamReader(
+										new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (!line.equals("")) paths.add(line);
+			}
+		}
+		finally { reader.close(); }
+		return paths;
+	}
+
+	/**
+	 * An item waiting in the queue.
+	 */
+	public static class Entry implements Delayed {
+		SendItem item;
+		int attempts;
+		long due;
+
+		Entry(SendItem item, int attempts, long delay) {
+			this.item = item;
+			this.attempts = attempts;
+			this.due = System.currentTimeMillis() + delay;
+		}
+
+		/**
+		 * Get the item.
+		 * @return the item.
+		 */
+		public SendItem getItem() {
+			return item;
+		}
+
+		/**
+		 * Get the number of attempts made before the item was queued.
+		 * @return the number of attempts.
+		 */
+		public int getAttempts() {
+			return attempts;
+		}
+
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(due - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		}
+
+		public int compareTo(Delayed other) {
+			long d = getDelay(TimeUnit.MILLISECONDS) - other.getDelay(TimeUnit.MILLISECONDS);
+			return (d < 0) ? -1 : ((d > 0) ? 1 : 0);
+		}
+	}
+}
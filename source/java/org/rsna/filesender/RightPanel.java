@@ -35,6 +35,8 @@ public class RightPanel extends JPanel
 
 	Sender sender = null;
 	SenderScrollPane senderScrollPane;
+	JLabel progressLabel;
+	javax.swing.Timer progressTimer = null;
 	File currentSelection = null;
 
 	public DestinationPanel destinationPanel;
@@ -99,9 +101,10 @@ public class RightPanel extends JPanel
 			String fileCountText = "<br><br>" + fileCount + " file" + ((fileCount!=1)?"s":"") + " sent";
 			String skipCountText = "<br>" + skipCount + " file" + ((skipCount!=1)?"s":"") + " skipped<br>";
 			senderScrollPane.append(fileCountText + skipCountText);
+			stopProgress();
 			footerPanel.button.setText("Okay");
 		}
-		else senderScrollPane.appendErrorString(event.message);
+		else senderScrollPane.appendEvent(event);
 	}
 
 	/**
@@ -115,10 +118,11 @@ public class RightPanel extends JPanel
 		if (event.getSource() instanceof JButton) {
 			if (buttonText.equals("Send")) {
 				destinationPanel.save();
-				String destination = destinationPanel.destinationList.getSelectedDestination();
+				String[] destinations = destinationPanel.destinationList.getSelectedDestinations();
 				boolean subdirectories = sourcePanel.getSubdirectories();
-				if ((currentSelection != null) && !destination.trim().equals("")) {
+				if ((currentSelection != null) && (destinations.length > 0)) {
 					try {
+						String destination = destinations[0];
 						sender = new Sender(
 							this,
 							sourcePanel.getFileFilter(),
@@ -127,14 +131,33 @@ public class RightPanel extends JPanel
 							footerPanel.unpackZip.isSelected(),
 							footerPanel.skipDuplicates.isSelected(),
 							footerPanel.forceMIRC.isSelected(),
-							footerPanel.getInterval(),
 							footerPanel.deleteFile.isSelected(),
-							destination);
+							destination,
+							footerPanel.getThreads());
+						setStreamingPolicy(sender, destination);
+						int maxConnections = StringUtil.getInt(properties.getProperty("http-max-connections"), 0);
+						if (maxConnections > 0) HttpTransport.setMaxConnectionsPerHost(maxConnections);
+						int maxAssociations = StringUtil.getInt(properties.getProperty("dicom-max-associations"), 0);
+						if (maxAssociations > 0) AssociationPool.getInstance().setMaxAssociations(maxAssociations);
+						int idleTimeout = StringUtil.getInt(properties.getProperty("dicom-idle-timeout"), 0);
+						if (idleTimeout > 0) AssociationPool.getInstance().setIdleTimeout(idleTimeout * 1000L);
+						for (int i=1; i<destinations.length; i++) {
+							setStreamingPolicy(sender.addDestination(destinations[i]), destinations[i]);
+						}
+						sender.setResume(footerPanel.resume.isSelected());
+						sender.setAdaptiveConcurrency(footerPanel.adaptive.isSelected());
+						sender.setWatch(footerPanel.watch.isSelected(), 0);
+						sender.setPrescan(footerPanel.prescan.isSelected());
+						sender.setGroupStudies(footerPanel.groupStudies.isSelected(), 0);
+						sender.setCompression(footerPanel.compress.isSelected(), 0);
+						sender.setGzip(footerPanel.gzip.isSelected());
+						footerPanel.setRateLimits();
 						sender.addSenderListener(this);
 						footerPanel.button.setText("Cancel");
 						senderScrollPane = new SenderScrollPane();
 						centerPanel.removeAll();
 						centerPanel.add(senderScrollPane,BorderLayout.CENTER);
+						startProgress();
 						sender.start();
 					}
 					catch (Exception e) {
@@ -148,17 +171,54 @@ public class RightPanel extends JPanel
 				footerPanel.button.setText("Okay");
 			}
 			else if (buttonText.equals("Okay")) {
-				String destination = destinationPanel.destinationList.getSelectedDestination();
+				String[] destinations = destinationPanel.destinationList.getSelectedDestinations();
 				footerPanel.button.setText("Send");
 				centerPanel.removeAll();
 				destinationPanel = new DestinationPanel(properties);
-				destinationPanel.destinationList.setSelectedDestination(destination);
+				destinationPanel.destinationList.setSelectedDestinations(destinations);
 				centerPanel.add(destinationPanel,BorderLayout.CENTER);
 				destinationPanel.repaint();
 			}
 		}
 	}
 
+	//Show the progress of the Sender above the log, updating it
+	//twice a second until the Sender is done.
+	private void startProgress() {
+		progressLabel = new JLabel(" ");
+		progressLabel.setBorder(BorderFactory.createEmptyBorder(3, 5, 3, 5));
+		centerPanel.add(progressLabel, BorderLayout.NORTH);
+		progressTimer = new javax.swing.Timer(500, new ActionListener() {
+			public void actionPerformed(ActionEvent event) {
+				progressLabel.setText(sender.getProgress().getSummary());
+			}
+		});
+		progressTimer.start();
+	}
+
+	private void stopProgress() {
+		if (progressTimer != null) {
+			progressTimer.stop();
+			progressTimer = null;
+			progressLabel.setText(sender.getProgress().getSummary());
+		}
+	}
+
+	//Set the HTTP streaming policy of a destination from its properties.
+	private void setStreamingPolicy(Sender sender, String destination) {
+		sender.setStreamingPolicy(
+			Sender.getStreamingPolicy(getDestinationProperty("http-streaming", destination)),
+			StringUtil.getInt(getDestinationProperty("http-chunk-size", destination), 0));
+	}
+
+	//Get a property for a destination. A property named name[destination]
+	//overrides a property named name, which applies to all destinations.
+	private String getDestinationProperty(String name, String destination) {
+		String value = properties.getProperty(name + "[" + destination + "]");
+		if (value == null) value = properties.getProperty(name);
+		return value;
+	}
+
 	//Class to display the heading in the proper place
 	class HeaderPanel extends JPanel {
 		public HeaderPanel() {
@@ -181,7 +241,16 @@ public class RightPanel extends JPanel
 		public JCheckBox unpackZip;
 		public JCheckBox skipDuplicates;
 		public JCheckBox forceMIRC;
-		public TextBox interval;
+		public JCheckBox resume;
+		public JCheckBox adaptive;
+		public JCheckBox watch;
+		public JCheckBox prescan;
+		public JCheckBox groupStudies;
+		public JCheckBox compress;
+		public JCheckBox gzip;
+		public TextBox maxFiles;
+		public TextBox maxMB;
+		public TextBox threads;
 		public JCheckBox deleteFile;
 		public FooterPanel() {
 			super();
@@ -212,7 +281,43 @@ public class RightPanel extends JPanel
 			forceMIRC = new JCheckBox("Force MIRC Content-Type for HTTP(S)",mirc.equals("yes"));
 			forceMIRC.setBackground(background);
 			
-			interval = new TextBox("0");
+			String res = properties.getProperty("resume");
+			if (res == null) {
+				res = "no";
+				properties.setProperty("resume",res);
+			}
+			resume = new JCheckBox("Resume (skip files sent in earlier runs of this job)",res.equals("yes"));
+			resume.setBackground(background);
+
+			String adapt = getProperty("adaptive-threads", "no");
+			adaptive = new JCheckBox("", adapt.equals("yes"));
+			adaptive.setBackground(background);
+
+			String w = getProperty("watch", "no");
+			watch = new JCheckBox("Watch the directory and send new files until cancelled",w.equals("yes"));
+			watch.setBackground(background);
+
+			String scan = getProperty("prescan", "no");
+			prescan = new JCheckBox("", scan.equals("yes"));
+			prescan.setBackground(background);
+
+			String group = getProperty("group-studies", "no");
+			groupStudies = new JCheckBox("Send each DICOM study together on one association",group.equals("yes"));
+			groupStudies.setBackground(background);
+
+			String rle = getProperty("compress", "no");
+			compress = new JCheckBox("", rle.equals("yes"));
+			compress.setBackground(background);
+
+			String gz = getProperty("gzip", "no");
+			gzip = new JCheckBox("", gz.equals("yes"));
+			gzip.setBackground(background);
+
+			maxFiles = new TextBox(getProperty("max-files-per-second", "0"));
+			maxMB = new TextBox(getProperty("max-mb-per-second", "0"));
+			maxFiles.addActionListener(this);
+			maxMB.addActionListener(this);
+			threads = new TextBox(getProperty("threads", "4"));
 			deleteFile = new JCheckBox("", false);
 			deleteFile.setBackground(background);
 
@@ -222,9 +327,17 @@ public class RightPanel extends JPanel
 			box1.add(unpackZip);
 			unpackZip.addActionListener(this);
 			box1.add(Box.createHorizontalGlue());
-			box1.add(new JLabel("Interval (ms):"));
+			box1.add(new JLabel("Threads:"));
+			box1.add(Box.createHorizontalStrut(5));
+			box1.add(threads);
+			box1.add(Box.createHorizontalStrut(10));
+			box1.add(new JLabel("Max files/s:"));
 			box1.add(Box.createHorizontalStrut(5));
-			box1.add(interval);
+			box1.add(maxFiles);
+			box1.add(Box.createHorizontalStrut(10));
+			box1.add(new JLabel("Max MB/s:"));
+			box1.add(Box.createHorizontalStrut(5));
+			box1.add(maxMB);
 			this.add(box1);
 
 			Box box2 = new Box(BoxLayout.X_AXIS);
@@ -236,6 +349,36 @@ public class RightPanel extends JPanel
 			box2.add(deleteFile);
 			this.add(box2);
 
+			Box box4 = new Box(BoxLayout.X_AXIS);
+			box4.add(resume);
+			resume.addActionListener(this);
+			box4.add(Box.createHorizontalGlue());
+			box4.add(new JLabel("Adapt threads to destination:"));
+			box4.add(adaptive);
+			adaptive.addActionListener(this);
+			this.add(box4);
+
+			Box box5 = new Box(BoxLayout.X_AXIS);
+			box5.add(watch);
+			watch.addActionListener(this);
+			box5.add(Box.createHorizontalGlue());
+			box5.add(new JLabel("Count files to estimate the time:"));
+			box5.add(prescan);
+			prescan.addActionListener(this);
+			this.add(box5);
+
+			Box box6 = new Box(BoxLayout.X_AXIS);
+			box6.add(groupStudies);
+			groupStudies.addActionListener(this);
+			box6.add(Box.createHorizontalGlue());
+			box6.add(new JLabel("Compress DICOM images (RLE):"));
+			box6.add(compress);
+			compress.addActionListener(this);
+			box6.add(new JLabel("  gzip HTTP:"));
+			box6.add(gzip);
+			gzip.addActionListener(this);
+			this.add(box6);
+
 			Box box3 = new Box(BoxLayout.X_AXIS);
 			box3.add(forceMIRC);
 			forceMIRC.addActionListener(this);
@@ -243,13 +386,53 @@ public class RightPanel extends JPanel
 			box3.add(button);
 			this.add(box3);
 		}
-		public int getInterval() {
-			return StringUtil.getInt(interval.getText(), 0);
+		private String getProperty(String name, String defaultValue) {
+			String value = properties.getProperty(name);
+			if (value == null) {
+				value = defaultValue;
+				properties.setProperty(name, value);
+			}
+			return value;
+		}
+		public double getMaxFiles() {
+			return getDouble(maxFiles.getText());
+		}
+		public double getMaxBytes() {
+			return getDouble(maxMB.getText()) * 1024 * 1024;
+		}
+		private double getDouble(String text) {
+			try { return Math.max(Double.parseDouble(text.trim()), 0); }
+			catch (Exception ex) { return 0; }
+		}
+		//Apply the rate limits to the current Sender. The limits
+		//can be changed while the Sender is running.
+		public void setRateLimits() {
+			properties.setProperty("max-files-per-second", maxFiles.getText().trim());
+			properties.setProperty("max-mb-per-second", maxMB.getText().trim());
+			if (sender != null) sender.setRateLimits(getMaxFiles(), getMaxBytes());
+		}
+		//Get the number of threads for a new Sender, saving it
+		//for the next session.
+		public int getThreads() {
+			int n = Math.max(StringUtil.getInt(threads.getText(), 1), 1);
+			properties.setProperty("threads", Integer.toString(n));
+			return n;
 		}
 		public void actionPerformed(ActionEvent evt) {
+			if ((evt.getSource() == maxFiles) || (evt.getSource() == maxMB)) {
+				setRateLimits();
+				return;
+			}
 			properties.setProperty("unpack-zip-files",(unpackZip.isSelected() ? "yes" : "no"));
 			properties.setProperty("skip-duplicates",(skipDuplicates.isSelected() ? "yes" : "no"));
 			properties.setProperty("force-mirc",(forceMIRC.isSelected() ? "yes" : "no"));
+			properties.setProperty("resume",(resume.isSelected() ? "yes" : "no"));
+			properties.setProperty("adaptive-threads",(adaptive.isSelected() ? "yes" : "no"));
+			properties.setProperty("watch",(watch.isSelected() ? "yes" : "no"));
+			properties.setProperty("prescan",(prescan.isSelected() ? "yes" : "no"));
+			properties.setProperty("group-studies",(groupStudies.isSelected() ? "yes" : "no"));
+			properties.setProperty("compress",(compress.isSelected() ? "yes" : "no"));
+			properties.setProperty("gzip",(gzip.isSelected() ? "yes" : "no"));
 		}
 	}
 	
@@ -0,0 +1,143 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.filesender;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * An encoder for the DICOM RLE Lossless transfer syntax (PS3.5 Annex G).
+ * Each frame is split into one segment for each byte of each sample,
+ * most significant byte first, and each row of each segment is
+ * encoded separately with the PackBits scheme.
+ */
+public class RleEncoder {
+
+	/** The maximum number of segments in a frame. */
+	public static final int maxSegments = 15;
+
+	int rows;
+	int columns;
+	int samples;
+	int bytes;
+	boolean planar;
+
+	/**
+	 * Class constructor.
+	 * @param rows the number of rows in a frame.
+	 * @param columns the number of columns in a frame.
+	 * @param samples the number of samples per pixel.
+	 * @param bitsAllocated the bits allocated per sample (8 or 16).
+	 * @param planar true if the samples are stored by plane
+	 * (Planar Configuration 1); false if they are interleaved.
+	 */
+	public RleEncoder(int rows, int columns, int samples, int bitsAllocated, boolean planar) {
+		this.rows = rows;
+		this.columns = columns;
+		this.samples = samples;
+		this.bytes = bitsAllocated / 8;
+		this.planar = planar;
+	}
+
+	/**
+	 * Determine whether an image can be encoded.
+	 * @param rows the number of rows in a frame.
+	 * @param columns the number of columns in a frame.
+	 * @param samples the number of samples per pixel.
+	 * @param bitsAllocated the bits allocated per sample.
+	 * @return true if the image can be encoded.
+	 */
+	public static boolean canEncode(int rows, int columns, int samples, int bitsAllocated) {
+		if ((rows <= 0) || (columns <= 0) || (samples <= 0)) return false;
+		if ((bitsAllocated != 8) && (bitsAllocated != 16)) return false;
+		return samples * (bitsAllocated / 8) <= maxSegments;
+	}
+
+	/**
+	 * Get the number of bytes in one uncompressed frame.
+	 * @return the frame length.
+	 */
+	public int getFrameLength() {
+		return rows * columns * samples * bytes;
+	}
+
+	/**
+	 * Encode one frame.
+	 * @param data the uncompressed pixel data, in little endian byte order.
+	 * @param offset the offset of the frame in the data.
+	 * @return the encoded frame, including its RLE header. The length is even.
+	 */
+	public byte[] encode(byte[] data, int offset) {
+		int segments = samples * bytes;
+		int pixels = rows * columns;
+		ByteArrayOutputStream out = new ByteArrayOutputStream(getFrameLength() / 2 + 64);
+		int[] offsets = new int[segments];
+		byte[] header = new byte[64];
+		out.write(header, 0, header.length);
+		byte[] row = new byte[columns];
+		for (int s=0; s<samples; s++) {
+			for (int b=bytes-1; b>=0; b--) {
+				offsets[s * bytes + (bytes - 1 - b)] = out.size();
+				for (int y=0; y<rows; y++) {
+					for (int x=0; x<columns; x++) {
+						int p = y * columns + x;
+						int index = planar ? (s * pixels + p) : (p * samples + s);
+						row[x] = data[offset + index * bytes + b];
+					}
+					packBits(row, out);
+				}
+				if ((out.size() & 1) != 0) out.write(0);
+			}
+		}
+		byte[] frame = out.toByteArray();
+		putInt(frame, 0, segments);
+		for (int i=0; i<segments; i++) putInt(frame, 4 * (i + 1), offsets[i]);
+		return frame;
+	}
+
+	//Encode one row of a segment. Runs of three or more equal bytes
+	//are replicated; everything else goes into literal runs.
+	private static void packBits(byte[] row, ByteArrayOutputStream out) {
+		int n = row.length;
+		int i = 0;
+		int literal = 0;
+		while (i < n) {
+			int run = 1;
+			while ((i + run < n) && (run < 128) && (row[i + run] == row[i])) run++;
+			if (run >= 3) {
+				flush(row, i - literal, literal, out);
+				literal = 0;
+				out.write(257 - run);
+				out.write(row[i]);
+				i += run;
+			}
+			else {
+				literal += run;
+				i += run;
+				if (literal >= 128) {
+					flush(row, i - literal, 128, out);
+					literal -= 128;
+				}
+			}
+		}
+		flush(row, n - literal, literal, out);
+	}
+
+	//Write a literal run of up to 128 bytes.
+	private static void flush(byte[] row, int start, int length, ByteArrayOutputStream out) {
+		if (length <= 0) return;
+		out.write(length - 1);
+		out.write(row, start, length);
+	}
+
+	private static void putInt(byte[] b, int offset, int value) {
+		b[offset] = (byte)value;
+		b[offset + 1] = (byte)(value >> 8);
+		b[offset + 2] = (byte)(value >> 16);
+		b[offset + 3] = (byte)(value >> 24);
+	}
+}
@@ -0,0 +1,61 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.filesender;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * A File found by the directory traversal, which answers the questions
+ * the file filter and the Sender ask about it from the attributes read
+ * during the traversal, instead of making a system call for each one.
+ * On a network file system, each of those calls is a round trip to the
+ * server. The attributes are a snapshot taken when the file was found,
+ * except that exists() checks the file system, since a file may be
+ * deleted before it is sent. The length is the length when the file
+ * was found; a FileItem reads the current length when it is sent.
+ */
+public class ScannedFile extends File {
+
+	static final long serialVersionUID = 1L;
+
+	boolean directory;
+	boolean regularFile;
+	long length;
+	long lastModified;
+
+	/**
+	 * Class constructor.
+	 * @param path the path of the file.
+	 * @param attrs the attributes read when the file was found.
+	 */
+	public ScannedFile(Path path, BasicFileAttributes attrs) {
+		super(path.toString());
+		directory = attrs.isDirectory();
+		regularFile = attrs.isRegularFile();
+		length = attrs.size();
+		lastModified = attrs.lastModifiedTime().toMillis();
+	}
+
+	public boolean isDirectory() {
+		return directory;
+	}
+
+	public boolean isFile() {
+		return regularFile;
+	}
+
+	public long length() {
+		return length;
+	}
+
+	public long lastModified() {
+		return lastModified;
+	}
+}
@@ -0,0 +1,192 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.filesender;
+
+import java.io.*;
+import org.rsna.ctp.objects.DicomObject;
+
+/**
+ * An object to be sent by a Sender: either a file on disk or
+ * an entry in a zip file. The Sender thread creates SendItems and
+ * queues them for the Workers, which send them and then release them.
+ */
+public abstract class SendItem {
+
+	String transferSyntaxUID = null;
+	String sopClassUID = null;
+	String sopInstanceUID = null;
+	String studyInstanceUID = null;
+	String seriesInstanceUID = null;
+	boolean headerRead = false;
+	boolean objectRead = false;
+
+	static final int[] headerTags = new int[] {
+		DicomHeaderReader.TransferSyntaxUID,
+		DicomHeaderReader.SOPClassUID,
+		DicomHeaderReader.SOPInstanceUID,
+		DicomHeaderReader.StudyInstanceUID,
+		DicomHeaderReader.SeriesInstanceUID
+	};
+
+	/**
+	 * Get the name of the item, used for the Content-Disposition
+	 * and to determine the content type.
+	 * @return the name of the item, without any path.
+	 */
+	public abstract String getName();
+
+	/**
+	 * Get the full path of the item, for display and logging.
+	 * @return the full path of the item.
+	 */
+	public abstract String getPath();
+
+	/**
+	 * Get the length of the item.
+	 * @return the length of the item in bytes, or -1 if it is unknown.
+	 */
+	public abstract long getLength();
+
+	/**
+	 * Get the number of bytes that copyTo writes, which is the
+	 * length of the item unless it is sent in a different form.
+	 * @return the number of bytes, or -1 if it is unknown.
+	 */
+	public long getContentLength() {
+		return getLength();
+	}
+
+	/**
+	 * Get the last-modified time of the item.
+	 * @return the time in ms since the epoch, or -1 if it is unknown.
+	 */
+	public abstract long getLastModified();
+
+	/**
+	 * Get the item as a file on disk, creating a temporary copy if necessary.
+	 * @return the file.
+	 * @throws IOException if the file cannot be created.
+	 */
+	public abstract File getFile() throws IOException;
+
+	/**
+	 * Open a stream to read the item. The caller must close it.
+	 * @return the stream.
+	 * @throws IOException if the item cannot be read.
+	 */
+	protected InputStream getInputStream() throws IOException {
+		return new FileInputStream(getFile());
+	}
+
+	/**
+	 * Copy the item to an output stream. The stream is flushed but not closed.
+	 * @param out the stream.
+	 * @param nio true to read files through NIO channels.
+	 * @return the number of bytes copied.
+	 * @throws IOException if the item cannot be read or the stream cannot be written.
+	 */
+	public abstract long copyTo(OutputStream out, boolean nio) throws IOException;
+
+	/**
+	 * Get the SOPInstanceUID of the item. The header is read the
+	 * first time a UID is requested, and the UIDs are kept. If the
+	 * header cannot be parsed, the item is parsed as a DicomObject.
+	 * @return the UID, or null if the item is not a DICOM object.
+	 */
+	public synchronized String getSOPInstanceUID() {
+		readHeader();
+		if ((sopInstanceUID == null) && !objectRead) {
+			objectRead = true;
+			try {
+				DicomObject dob = new DicomObject(getFile());
+				sopInstanceUID = dob.getSOPInstanceUID();
+				dob.close();
+			}
+			catch (Exception unable) { }
+		}
+		return sopInstanceUID;
+	}
+
+	/**
+	 * Get the SOPClassUID of the item from its header.
+	 * @return the UID, or null if the item is not a DICOM object.
+	 */
+	public synchronized String getSOPClassUID() {
+		readHeader();
+		return sopClassUID;
+	}
+
+	/**
+	 * Get the TransferSyntaxUID of the item from its File Meta Information.
+	 * @return the UID, or null if the item is not a DICOM Part 10 file.
+	 */
+	public synchronized String getTransferSyntaxUID() {
+		readHeader();
+		return transferSyntaxUID;
+	}
+
+	/**
+	 * Get the StudyInstanceUID of the item from its header.
+	 * @return the UID, or null if the item is not a DICOM object.
+	 */
+	public synchronized String getStudyInstanceUID() {
+		readHeader();
+		return studyInstanceUID;
+	}
+
+	/**
+	 * Get the SeriesInstanceUID of the item from its header.
+	 * @return the UID, or null if the item is not a DICOM object.
+	 */
+	public synchronized String getSeriesInstanceUID() {
+		readHeader();
+		return seriesInstanceUID;
+	}
+
+	//Read the UIDs from the start of the item, once.
+	private void readHeader() {
+		if (headerRead) return;
+		headerRead = true;
+		InputStream in = null;
+		try {
+			in = getInputStream();
+			String[] values = DicomHeaderReader.getElements(in, headerTags);
+			if (values != null) {
+				transferSyntaxUID = values[0];
+				sopClassUID = values[1];
+				sopInstanceUID = values[2];
+				studyInstanceUID = values[3];
+				seriesInstanceUID = values[4];
+			}
+		}
+		catch (Exception unreadable) { }
+		finally {
+			if (in != null) {
+				try { in.close(); }
+				catch (Exception ignore) { }
+			}
+		}
+	}
+
+	/**
+	 * Delete the source of the item after successful transmission.
+	 * Items that are not files on disk are not deleted.
+	 */
+	public void delete() { }
+
+	/**
+	 * Release any resources held by the item. This method is called
+	 * once by each destination, after its last attempt to send the item.
+	 * @return true if the item has been released by all its destinations;
+	 * false if it is still held by others.
+	 */
+	public boolean release() {
+		return true;
+	}
+
+}
@@ -0,0 +1,157 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.filesender;
+
+import java.io.*;
+import java.util.*;
+import org.apache.log4j.Logger;
+
+/**
+ * A journal of the results of a send job, used to resume the job
+ * after it has been interrupted.
+ * <p>
+ * A job is identified by its source file or directory and its
+ * destination. Each result is appended to the job's journal file
+ * as a line containing the status, size, last-modified time,
+ * destination, and path of the item. When a job is restarted, the
+ * journal is read and the items that were sent successfully, and
+ * have not changed since, are skipped. The check is a lookup in a
+ * hash set, so it takes constant time per item.
+ */
+public class SendJournal {
+
+	static final Logger logger = Logger.getLogger(SendJournal.class);
+
+	static final File journalDir = new File("journals");
+	static final long flushInterval = 1000;
+
+	File file;
+	String destination;
+	HashSet<Long> completed;
+	BufferedWriter writer;
+	long lastFlush = 0;
+
+	/**
+	 * Open the journal for a job, reading the results of
+	 * any earlier runs of the same job.
+	 * @param source the file or directory being sent.
+	 * @param destination the destination URL.
+	 * @throws IOException if the journal cannot be read or opened for writing.
+	 */
+	public SendJournal(File source, String destination) throws IOException {
+		this.destination = destination;
+		journalDir.mkdirs();
+		file = new File(journalDir, getJobName(source, destination) + ".journal");
+		completed = new HashSet<Long>();
+		if (file.exists()) load();
+		writer = new BufferedWriter(
+					new OutputStreamWriter(
+						new FileOutputStream(file, true), "UTF-8"));
+	}
+
+	/**
+	 * Get a name for a job that can be used in a filename. The name
+	 * is a readable form of the source and destination, with a hash
+	 * of both to make it unique.
+	 * @param source the file or directory being sent.
+	 * @param destination the destination URL.
+	 * @return the name of the job.
+	 */
+	public static String getJobName(File source, String destination) {
+		String job = source.getAbsolutePath() + " -> " + destination;
+		String name = job.replaceAll("[^A-Za-z0-9._-]+", "_");
+		if (name.length() > 100) name = name.substring(name.length() - 100);
+		return name + "-" + Integer.toHexString(job.hashCode());
+	}
+
+	/**
+	 * Get the journal file.
+	 * @return the file.
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Get the number of items recorded as sent in earlier runs.
+	 * @return the number of completed items.
+	 */
+	public synchronized int getCompletedCount() {
+		return completed.size();
+	}
+
+	/**
+	 * Determine whether an item was sent successfully in an earlier
+	 * run and has not changed since.
+	 * @param item the item.
+	 * @return true if the item can be skipped.
+	 */
+	public synchronized boolean isCompleted(SendItem item) {
+		return completed.contains(getKey(item.getPath(), item.getLength(), item.getLastModified()));
+	}
+
+	/**
+	 * Record the result of sending an item.
+	 * @param item the item.
+	 * @param status the result, typically OK, FAIL, or RETRY.
+	 */
+	public synchronized void record(SendItem item, String status) {
+		long length = item.getLength();
+		long lastModified = item.getLastModified();
+		String path = item.getPath();
+		try {
+			writer.write(status + "\t" + length + "\t" + lastModified + "\t" + destination + "\t" + path);
+			writer.newLine();
+			long now = System.currentTimeMillis();
+			if (now - lastFlush > flushInterval) {
+				writer.flush();
+				lastFlush = now;
+			}
+		}
+		catch (IOException ex) { logger.warn("Unable to write to "+file, ex); }
+		if (status.equals("OK")) completed.add(getKey(path, length, lastModified));
+	}
+
+	/**
+	 * Flush and close the journal.
+	 */
+	public synchronized void close() {
+		try { writer.close(); }
+		catch (IOException ex) { logger.warn("Unable to close "+file, ex); }
+	}
+
+	//Read the results of earlier runs. A line may have been
+	//cut short by a crash, so unparseable lines are ignored.
+	private void load() throws IOException {
+		BufferedReader reader = new BufferedReader(
+									new InputStreamReader(
+										new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t", 5);
+				if ((fields.length == 5) && fields[0].equals("OK")) {
+					try {
+						long length = Long.parseLong(fields[1]);
+						long lastModified = Long.parseLong(fields[2]);
+						completed.add(getKey(fields[4], length, lastModified));
+					}
+					catch (NumberFormatException skip) { }
+				}
+			}
+		}
+		finally { reader.close(); }
+		logger.info("Loaded "+completed.size()+" completed items from "+file);
+	}
+
+	//Make the key for an item: a 64-bit hash of its path, length and
+	//last-modified time, which keeps the in-memory set compact.
+	private static Long getKey(String path, long length, long lastModified) {
+		return Long.valueOf(UIDIndex.hash(path + "\t" + length + "\t" + lastModified));
+	}
+}
@@ -0,0 +1,362 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.filesender;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.*;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.apache.log4j.Logger;
+import org.rsna.ctp.pipeline.Status;
+
+/**
+ * The metrics of the send pipeline for one destination: counters of
+ * the files and bytes sent, skipped, failed, and retried; latency
+ * histograms for each phase of a transfer; and gauges of the queues
+ * and connections in use.
+ * <p>
+ * The phases separate the causes of a slow transfer. For HTTP, the
+ * upload time is split into the time spent reading the file (disk-bound)
+ * and the time spent writing it to the connection (network-bound), and
+ * the response time is the time the receiver takes to process the file
+ * after it has been sent (receiver-bound). For DICOM, the time spent
+ * waiting for an association is separated from the time of the store.
+ * <p>
+ * One instance is shared by all the Senders to the same destination.
+ * Each instance is registered as a JMX MBean named
+ * org.rsna.filesender:type=SendMetrics,destination="url", and a summary
+ * of each active destination is logged every minute.
+ */
+public class SendMetrics implements SendMetricsMBean {
+
+	static final Logger logger = Logger.getLogger(SendMetrics.class);
+
+	static final Hashtable<String,SendMetrics> registry = new Hashtable<String,SendMetrics>();
+	static long logInterval = 60000;
+	static java.util.Timer logTimer = null;
+
+	String destination;
+	String poolKey = null;
+	CopyOnWriteArrayList<Sender> senders = new CopyOnWriteArrayList<Sender>();
+
+	AtomicLong filesSent = new AtomicLong();
+	AtomicLong bytesSent = new AtomicLong();
+	AtomicLong filesSkipped = new AtomicLong();
+	AtomicLong filesFailed = new AtomicLong();
+	AtomicLong filesRetried = new AtomicLong();
+	AtomicLong filesCompressed = new AtomicLong();
+	AtomicLong bytesBeforeCompression = new AtomicLong();
+	AtomicLong bytesAfterCompression = new AtomicLong();
+	AtomicLong filesGzipped = new AtomicLong();
+	AtomicLong bytesBeforeGzip = new AtomicLong();
+	AtomicLong bytesAfterGzip = new AtomicLong();
+	AtomicInteger inFlight = new AtomicInteger();
+	AtomicInteger connectionsInUse = new AtomicInteger();
+	long lastLogged = 0;
+
+	LatencyHistogram connect = new LatencyHistogram("connect");
+	LatencyHistogram upload = new LatencyHistogram("upload");
+	LatencyHistogram diskRead = new LatencyHistogram("disk-read");
+	LatencyHistogram networkWrite = new LatencyHistogram("network-write");
+	LatencyHistogram response = new LatencyHistogram("response");
+	LatencyHistogram associationWait = new LatencyHistogram("association-wait");
+	LatencyHistogram store = new LatencyHistogram("store");
+	LatencyHistogram compress = new LatencyHistogram("compress");
+	LatencyHistogram total = new LatencyHistogram("total");
+	LatencyHistogram[] histograms = new LatencyHistogram[] {
+		connect, upload, diskRead, networkWrite, response, associationWait, store, compress, total
+	};
+
+	/**
+	 * Get the metrics for a destination, creating and registering
+	 * them if necessary.
+	 * @param destination the destination URL.
+	 * @return the metrics.
+	 */
+	public static synchronized SendMetrics getInstance(String destination) {
+		SendMetrics metrics = registry.get(destination);
+		if (metrics == null) {
+			metrics = new SendMetrics(destination);
+			registry.put(destination, metrics);
+			metrics.register();
+			startLogging();
+		}
+		return metrics;
+	}
+
+	/**
+	 * Set the interval between the summaries written to the log.
+	 * This must be called before the first metrics are created.
+	 * @param interval the interval in ms, or zero to disable the summaries.
+	 */
+	public static synchronized void setLogInterval(long interval) {
+		logInterval = interval;
+	}
+
+	//Private constructor; use getInstance.
+	private SendMetrics(String destination) {
+		this.destination = destination;
+	}
+
+	//Register the metrics with the platform MBean server.
+	private void register() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(
+				"org.rsna.filesender:type=SendMetrics,destination=" + ObjectName.quote(destination));
+			if (!server.isRegistered(name)) server.registerMBean(this, name);
+		}
+		catch (Exception ex) { logger.warn("Unable to register the metrics MBean for "+destination, ex); }
+	}
+
+	//Start the timer that logs the summaries of the active destinations.
+	private static void startLogging() {
+		if ((logTimer != null) || (logInterval <= 0)) return;
+		logTimer = new java.util.Timer("FileSender-Metrics", true);
+		logTimer.scheduleAtFixedRate(new TimerTask() {
+			public void run() {
+				for (SendMetrics metrics : registry.values()) metrics.logSummary();
+			}
+		}, logInterval, logInterval);
+	}
+
+	//Log the summary if anything has happened since the last one.
+	private void logSummary() {
+		long count = filesSent.get() + filesSkipped.get() + filesFailed.get() + filesRetried.get();
+		if ((count != lastLogged) || (inFlight.get() > 0)) {
+			lastLogged = count;
+			logger.info(getSummary());
+		}
+	}
+
+	/**
+	 * Attach a running Sender, whose queues are included in the gauges.
+	 * @param sender the Sender.
+	 */
+	public void attach(Sender sender) {
+		if (sender.poolKey != null) poolKey = sender.poolKey;
+		senders.add(sender);
+	}
+
+	/**
+	 * Detach a Sender that has finished.
+	 * @param sender the Sender.
+	 */
+	public void detach(Sender sender) {
+		senders.remove(sender);
+	}
+
+	/**
+	 * Count the final result of sending a file.
+	 * @param status the result.
+	 * @param bytes the size of the file.
+	 * @param nanos the time taken to send the file, in nanoseconds.
+	 */
+	public void recordResult(Status status, long bytes, long nanos) {
+		if (status.equals(Status.OK)) {
+			filesSent.incrementAndGet();
+			if (bytes > 0) bytesSent.addAndGet(bytes);
+		}
+		else if (status.equals(Status.NONE)) filesSkipped.incrementAndGet();
+		else if (status.equals(Status.RETRY)) filesRetried.incrementAndGet();
+		else filesFailed.incrementAndGet();
+		if (nanos >= 0) total.record(nanos);
+	}
+
+	/**
+	 * Count a DICOM object that was compressed with RLE Lossless
+	 * before it was sent.
+	 * @param before the size of the file before compression.
+	 * @param after the size of the file after compression.
+	 */
+	public void recordCompression(long before, long after) {
+		filesCompressed.incrementAndGet();
+		bytesBeforeCompression.addAndGet(before);
+		bytesAfterCompression.addAndGet(after);
+	}
+
+	/**
+	 * Count an HTTP upload that was sent with gzip content encoding.
+	 * @param before the size of the file.
+	 * @param after the number of bytes sent.
+	 */
+	public void recordGzip(long before, long after) {
+		filesGzipped.incrementAndGet();
+		bytesBeforeGzip.addAndGet(before);
+		bytesAfterGzip.addAndGet(after);
+	}
+
+	public String getDestination() {
+		return destination;
+	}
+
+	public long getFilesSent() {
+		return filesSent.get();
+	}
+
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	public long getFilesSkipped() {
+		return filesSkipped.get();
+	}
+
+	public long getFilesFailed() {
+		return filesFailed.get();
+	}
+
+	public long getFilesRetried() {
+		return filesRetried.get();
+	}
+
+	public long getFilesCompressed() {
+		return filesCompressed.get();
+	}
+
+	public double getCompressionRatio() {
+		long after = bytesAfterCompression.get();
+		return (after > 0) ? (double)bytesBeforeCompression.get() / after : 0;
+	}
+
+	public long getFilesGzipped() {
+		return filesGzipped.get();
+	}
+
+	public double getGzipRatio() {
+		long after = bytesAfterGzip.get();
+		return (after > 0) ? (double)bytesBeforeGzip.get() / after : 0;
+	}
+
+	public int getQueueDepth() {
+		int depth = 0;
+		for (Sender sender : senders) {
+			if (sender.queue != null) depth += sender.queue.size();
+		}
+		return depth;
+	}
+
+	public int getRetryQueueDepth() {
+		int depth = 0;
+		for (Sender sender : senders) {
+			if (sender.retryQueue != null) depth += sender.retryQueue.size();
+		}
+		return depth;
+	}
+
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	public int getConcurrencyLimit() {
+		int limit = 0;
+		for (Sender sender : senders) limit += sender.getConcurrency();
+		return limit;
+	}
+
+	public int getConnectionsInUse() {
+		return connectionsInUse.get();
+	}
+
+	public int getAssociationsInUse() {
+		return (poolKey != null) ? AssociationPool.getInstance().getInUse(poolKey) : 0;
+	}
+
+	public int getAssociationsIdle() {
+		return (poolKey != null) ? AssociationPool.getInstance().getIdle(poolKey) : 0;
+	}
+
+	public double getMeanConnectTime() {
+		return connect.getMean();
+	}
+
+	public double getMeanUploadTime() {
+		return upload.getMean();
+	}
+
+	public double getMeanDiskReadTime() {
+		return diskRead.getMean();
+	}
+
+	public double getMeanNetworkWriteTime() {
+		return networkWrite.getMean();
+	}
+
+	public double getMeanResponseTime() {
+		return response.getMean();
+	}
+
+	public double getMeanAssociationWaitTime() {
+		return associationWait.getMean();
+	}
+
+	public double getMeanStoreTime() {
+		return store.getMean();
+	}
+
+	public double getMeanCompressTime() {
+		return compress.getMean();
+	}
+
+	public double getMeanTotalTime() {
+		return total.getMean();
+	}
+
+	public String[] getLatencies() {
+		LinkedList<String> list = new LinkedList<String>();
+		for (LatencyHistogram h : histograms) {
+			if (h.getCount() > 0) list.add(h.toString());
+		}
+		return list.toArray(new String[list.size()]);
+	}
+
+	public String getSummary() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(destination).append(": ")
+		  .append(filesSent.get()).append(" sent (")
+		  .append(String.format("%.1f", bytesSent.get() / (1024.0 * 1024.0))).append(" MB), ")
+		  .append(filesSkipped.get()).append(" skipped, ")
+		  .append(filesFailed.get()).append(" failed, ")
+		  .append(filesRetried.get()).append(" retried; queue ")
+		  .append(getQueueDepth()).append(", retries ")
+		  .append(getRetryQueueDepth()).append(", in flight ")
+		  .append(inFlight.get());
+		if (filesCompressed.get() > 0) {
+			sb.append("; ").append(filesCompressed.get()).append(" compressed ")
+			  .append(String.format("%.2f:1", getCompressionRatio()));
+		}
+		if (filesGzipped.get() > 0) {
+			sb.append("; ").append(filesGzipped.get()).append(" gzipped ")
+			  .append(String.format("%.2f:1", getGzipRatio()));
+		}
+		for (LatencyHistogram h : histograms) {
+			if (h.getCount() > 0) {
+				sb.append("; ").append(h.getName())
+				  .append(String.format(" %.2f/%.2fms", h.getMean(), h.getPercentile(99)));
+			}
+		}
+		return sb.toString();
+	}
+
+	public void reset() {
+		filesSent.set(0);
+		bytesSent.set(0);
+		filesSkipped.set(0);
+		filesFailed.set(0);
+		filesRetried.set(0);
+		filesCompressed.set(0);
+		bytesBeforeCompression.set(0);
+		bytesAfterCompression.set(0);
+		filesGzipped.set(0);
+		bytesBeforeGzip.set(0);
+		bytesAfterGzip.set(0);
+		for (LatencyHistogram h : histograms) h.reset();
+	}
+}
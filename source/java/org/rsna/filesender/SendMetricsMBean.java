@@ -0,0 +1,50 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.filesender;
+
+/**
+ * The JMX management interface of the metrics for one destination.
+ * Times are in ms.
+ */
+public interface SendMetricsMBean {
+
+	public String getDestination();
+
+	public long getFilesSent();
+	public long getBytesSent();
+	public long getFilesSkipped();
+	public long getFilesFailed();
+	public long getFilesRetried();
+	public long getFilesCompressed();
+	public double getCompressionRatio();
+	public long getFilesGzipped();
+	public double getGzipRatio();
+
+	public int getQueueDepth();
+	public int getRetryQueueDepth();
+	public int getInFlight();
+	public int getConcurrencyLimit();
+	public int getConnectionsInUse();
+	public int getAssociationsInUse();
+	public int getAssociationsIdle();
+
+	public double getMeanConnectTime();
+	public double getMeanUploadTime();
+	public double getMeanDiskReadTime();
+	public double getMeanNetworkWriteTime();
+	public double getMeanResponseTime();
+	public double getMeanAssociationWaitTime();
+	public double getMeanStoreTime();
+	public double getMeanCompressTime();
+	public double getMeanTotalTime();
+
+	public String[] getLatencies();
+	public String getSummary();
+
+	public void reset();
+}
@@ -0,0 +1,226 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.filesender;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The progress of a send job: the totals found by the pre-scan, the
+ * files and bytes finished so far, and the recent throughput, from
+ * which the percentage complete and the time remaining are estimated.
+ * <p>
+ * The throughput is a moving average over the last ten seconds, kept
+ * in one-second buckets, so it follows changes in the destination's
+ * speed without jumping with every file.
+ */
+public class SendProgress {
+
+	static final int windowSeconds = 10;
+
+	AtomicLong plannedFiles = new AtomicLong();
+	AtomicLong plannedBytes = new AtomicLong();
+	volatile boolean planned = false;
+	volatile boolean scanning = false;
+	AtomicLong doneFiles = new AtomicLong();
+	AtomicLong doneBytes = new AtomicLong();
+	long startTime = System.currentTimeMillis();
+
+	long[] bucketSecond = new long[windowSeconds];
+	long[] bucketFiles = new long[windowSeconds];
+	long[] bucketBytes = new long[windowSeconds];
+
+	/**
+	 * Mark the start of the pre-scan.
+	 */
+	public void startScan() {
+		scanning = true;
+	}
+
+	/**
+	 * Add a file found by the pre-scan to the totals.
+	 * @param bytes the size of the file.
+	 */
+	public void addPlanned(long bytes) {
+		plannedFiles.incrementAndGet();
+		if (bytes > 0) plannedBytes.addAndGet(bytes);
+	}
+
+	/**
+	 * Mark the end of the pre-scan, after which the totals are complete.
+	 */
+	public void endScan() {
+		scanning = false;
+		planned = true;
+	}
+
+	/**
+	 * Record a file that has been finished, whether it was sent, skipped, or failed.
+	 * @param bytes the size of the file, or a negative number if it is unknown.
+	 */
+	public void record(long bytes) {
+		if (bytes < 0) bytes = 0;
+		doneFiles.incrementAndGet();
+		doneBytes.addAndGet(bytes);
+		long second = System.currentTimeMillis() / 1000;
+		int k = (int)(second % windowSeconds);
+		synchronized (this) {
+			if (bucketSecond[k] != second) {
+				bucketSecond[k] = second;
+				bucketFiles[k] = 0;
+				bucketBytes[k] = 0;
+			}
+			bucketFiles[k]++;
+			bucketBytes[k] += bytes;
+		}
+	}
+
+	/**
+	 * Get the number of files finished.
+	 * @return the number of files.
+	 */
+	public long getDoneFiles() {
+		return doneFiles.get();
+	}
+
+	/**
+	 * Get the number of bytes finished.
+	 * @return the number of bytes.
+	 */
+	public long getDoneBytes() {
+		return doneBytes.get();
+	}
+
+	/**
+	 * Get the number of files found by the pre-scan so far.
+	 * @return the number of files.
+	 */
+	public long getPlannedFiles() {
+		return plannedFiles.get();
+	}
+
+	/**
+	 * Get the number of bytes found by the pre-scan so far.
+	 * @return the number of bytes.
+	 */
+	public long getPlannedBytes() {
+		return plannedBytes.get();
+	}
+
+	/**
+	 * Determine whether the pre-scan is running.
+	 * @return true if the totals are still being counted.
+	 */
+	public boolean isScanning() {
+		return scanning;
+	}
+
+	/**
+	 * Determine whether the pre-scan has finished.
+	 * @return true if the totals are complete.
+	 */
+	public boolean isPlanned() {
+		return planned;
+	}
+
+	/**
+	 * Get the average number of files finished per second over the
+	 * last ten seconds, or since the start of the job if it is shorter.
+	 * @return the rate.
+	 */
+	public double getFilesPerSecond() {
+		return getRate(bucketFiles);
+	}
+
+	/**
+	 * Get the average number of bytes finished per second over the
+	 * last ten seconds, or since the start of the job if it is shorter.
+	 * @return the rate.
+	 */
+	public double getBytesPerSecond() {
+		return getRate(bucketBytes);
+	}
+
+	/**
+	 * Get the fraction of the job that is finished, by bytes, or by
+	 * files if the files are empty.
+	 * @return the percentage, or -1 if the pre-scan has not finished.
+	 */
+	public double getPercent() {
+		if (!planned) return -1;
+		long total = plannedBytes.get();
+		if (total > 0) return Math.min(100.0, 100.0 * doneBytes.get() / total);
+		total = plannedFiles.get();
+		if (total > 0) return Math.min(100.0, 100.0 * doneFiles.get() / total);
+		return 100.0;
+	}
+
+	/**
+	 * Get the estimated time to finish the job at the current throughput.
+	 * @return the time in ms, or -1 if it cannot be estimated.
+	 */
+	public long getRemainingTime() {
+		if (!planned) return -1;
+		long remaining = plannedBytes.get() - doneBytes.get();
+		double rate = getBytesPerSecond();
+		if (plannedBytes.get() == 0) {
+			remaining = plannedFiles.get() - doneFiles.get();
+			rate = getFilesPerSecond();
+		}
+		if (remaining <= 0) return 0;
+		if (rate <= 0) return -1;
+		return (long)(1000.0 * remaining / rate);
+	}
+
+	/**
+	 * Get a one-line summary of the progress, with the counts, the
+	 * throughput, and, if the pre-scan has finished, the percentage
+	 * complete and the estimated time remaining.
+	 * @return the summary.
+	 */
+	public String getSummary() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(doneFiles.get());
+		if (planned || scanning) {
+			sb.append(" of ").append(plannedFiles.get());
+			if (scanning) sb.append("+");
+		}
+		sb.append(" files");
+		double percent = getPercent();
+		if (percent >= 0) sb.append(String.format(" (%.1f%%)", percent));
+		sb.append(String.format("  %.1f files/s  %.2f MB/s",
+								getFilesPerSecond(), getBytesPerSecond() / (1024 * 1024)));
+		long remaining = getRemainingTime();
+		if (remaining >= 0) sb.append("  ETA ").append(formatTime(remaining));
+		return sb.toString();
+	}
+
+	/**
+	 * Format a time as h:mm:ss.
+	 * @param ms the time in ms.
+	 * @return the formatted time.
+	 */
+	public static String formatTime(long ms) {
+		long s = (ms + 999) / 1000;
+		return String.format("%d:%02d:%02d", s / 3600, (s / 60) % 60, s % 60);
+	}
+
+	//Average a set of buckets over the window, or over the time
+	//since the start if the job is younger than the window. The
+	//window ends with the current second, which is only partly over.
+	private synchronized double getRate(long[] buckets) {
+		long now = System.currentTimeMillis();
+		long second = now / 1000;
+		long total = 0;
+		for (int i=0; i<windowSeconds; i++) {
+			if ((bucketSecond[i] > second - windowSeconds) && (bucketSecond[i] <= second)) total += buckets[i];
+		}
+		double window = (windowSeconds - 1) + (now % 1000) / 1000.0;
+		double seconds = Math.max(Math.min(window, (now - startTime) / 1000.0), 1.0);
+		return total / seconds;
+	}
+}
@@ -10,25 +10,37 @@ package org.rsna.filesender;
 import java.awt.*;
 import java.io.*;
 import java.net.*;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.cert.X509Certificate;
 import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.zip.*;
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.TrustManager;
 import javax.swing.*;
 import javax.swing.event.*;
 import org.apache.log4j.Logger;
-import org.rsna.ctp.objects.DicomObject;
 import org.rsna.ctp.pipeline.Status;
 import org.rsna.ctp.stdstages.dicom.DicomStorageSCU;
 import org.rsna.ui.GeneralFileFilter;
 import org.rsna.ui.SourcePanel;
 import org.rsna.util.FileUtil;
-import org.rsna.util.HttpUtil;
 
 /**
  * A Thread for sending one or more files using HTTP, HTTPS, or DICOM.
+ * The Sender thread walks the directory tree and queues the files it
+ * finds; a pool of Worker threads takes files from the queue and sends
+ * them in parallel.
+ * <p>
+ * A job can have more than one destination. Each other destination
+ * has a Sender of its own, which is not started as a Thread but has
+ * its own Workers and state; the Sender that walks the tree queues
+ * each file for all of them.
  */
 public class Sender extends Thread {
 	
@@ -36,6 +48,14 @@ public class Sender extends Thread {
 
 	private TrustManager[] trustAllCerts;
 
+	//The content types that are already compressed, as prefixes.
+	static final String[] compressedTypes = new String[] {
+		"image/jpeg", "image/gif", "image/png", "video/", "audio/x-mpeg",
+		"application/x-gzip", "application/x-zip-compressed", "application/x-compress",
+		"application/java-archive", "application/x-stuffit", "application/pdf",
+		"application/vnd.rn-realmedia", "application/x-shockwave-flash"
+	};
+
 	Component parent;
 	EventListenerList listenerList;
 	GeneralFileFilter filter;
@@ -44,27 +64,95 @@ public class Sender extends Thread {
 	boolean unpackZip;
 	boolean skipDuplicates;
 	boolean forceMircContentType;
-	int interval;
+	RateLimiter rateLimiter;
+	SendMetrics metrics;
+	ConcurrencyLimiter concurrencyLimiter = null;
 	boolean deleteFile;
 	Properties contentTypes;
 	String urlString;
+	URL url;
+	String hostKey;
+	boolean keepAlive = true;
+	boolean nioStreaming = true;
+	int streamingPolicy = FIXED_LENGTH;
+	int chunkSize = defaultChunkSize;
 	String calledAET;
 	String callingAET;
 	String host;
 	int port;
+	String poolKey;
 	boolean http;
 	boolean https;
 	boolean dicom;
-	int fileCount = 0;
-	int skipCount = 0;
+	int threads;
+	AtomicInteger fileCount = new AtomicInteger();
+	AtomicInteger skipCount = new AtomicInteger();
 	int timeout = 5000;
-	HashSet<String> sopiUIDs;
-	
+	UIDIndex sopiUIDs;
+	boolean resume = false;
+	SendJournal journal;
+	RetryQueue retryQueue;
+	int maxAttempts = RetryQueue.defaultMaxAttempts;
+	long retryBaseDelay = RetryQueue.defaultBaseDelay;
+	long retryMaxDelay = RetryQueue.defaultMaxDelay;
+	AtomicInteger outstanding = new AtomicInteger();
+	boolean watch = false;
+	boolean prescan = false;
+	SendProgress progress = new SendProgress();
+	long stableTime = defaultStableTime;
+
+	boolean groupStudies = false;
+	long groupIdleTime = 0;
+	StudyGrouper grouper = null;
+	boolean compress = false;
+	long maxCompressedLength = defaultMaxCompressedLength;
+	boolean gzip = false;
+	HashSet<String> probes = new HashSet<String>();
+	ThreadLocal<DicomStorageSCU> heldAssociation = new ThreadLocal<DicomStorageSCU>();
+	Sender[] peers = new Sender[0];
+	Sender primary = null;
+
+	BlockingQueue<SendItem> queue;
+	Worker[] workers;
+	volatile boolean traversalDone = false;
+	volatile boolean cancelled = false;
+	ConcurrentLinkedQueue<SenderEvent> events = new ConcurrentLinkedQueue<SenderEvent>();
+	AtomicBoolean deliveryScheduled = new AtomicBoolean(false);
+
 	static final long maxUnchunked = 20 * 1024 * 1024;
+	static final int defaultChunkSize = 64 * 1024;
+
+	/** HTTP streaming policy: send with a fixed length whenever the length is known. */
+	public static final int FIXED_LENGTH = 0;
+	/** HTTP streaming policy: always send chunked. */
+	public static final int CHUNKED = 1;
+	/** HTTP streaming policy: send chunked above 20MB, with a fixed length below. */
+	public static final int CHUNKED_ABOVE_LIMIT = 2;
+	static final int queueSizePerThread = 16;
+	static final long defaultStableTime = 2000;
+	static final long watchPollInterval = 250;
+	static final int traversalThreads = 4;
+	static final long defaultMaxCompressedLength = 32 * 1024 * 1024;
+	static final int prescanThreads = 2;
+	static final int probeThreads = 2;
+
+	//The threads that probe destinations for the RLE Lossless presentation
+	//context. They are separate from the Compressor threads, so a slow
+	//destination does not hold up the compression of other objects.
+	static final ExecutorService prober = Executors.newFixedThreadPool(
+		probeThreads,
+		new ThreadFactory() {
+			final AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "FileSender-Probe-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
 
 	/**
 	 * Class constructor; creating an instance of the Sender.
-	 * @param parent the parent of this Thread.
+	 * @param parent the parent of this Thread, or null if there is no GUI.
 	 * @param filter the file filter for selecting files to send.
 	 * @param file the file to send, or if it is a directory, the
 	 * directory whose files are to be sent if they match the filter.
@@ -75,15 +163,16 @@ public class Sender extends Thread {
 	 * @param unpackZip true zip files are to be unpacked and their
 	   contents sent individually; false if zip files are to be sent intact.
 	 * @param skipDuplicates true files with SOPInstanceUIDs that have
-	   already been sent are to be skipped.
+	   already been sent to the destination, in this or any earlier run,
+	   are to be skipped.
 	 * @param forceMircContentType true if the HTTP content type is
 	 * to be set to application/x-mirc-dicom for uploading to MIRC
 	 * Clinical Trial Services; false if the file extension is to be
 	 * used to determine the content type; ignored if the protocol is
 	 * DICOM.
-	 * @param interval time to wait after sending a file.
 	 * @param deleteFile true to delete a file after successful transmission.
 	 * @param urlString the URL of the destination.
+	 * @param threads the number of Worker threads sending files in parallel.
 	 * @throws Exception on any error
 	 */
 	public Sender(Component parent,
@@ -93,9 +182,9 @@ public class Sender extends Thread {
 				  boolean unpackZip,
 				  boolean skipDuplicates,
 				  boolean forceMircContentType,
-				  int interval,
 				  boolean deleteFile,
-				  String urlString) throws Exception {
+				  String urlString,
+				  int threads) throws Exception {
 		super();
 		this.parent = parent;
 		this.filter = filter;
@@ -104,27 +193,39 @@ public class Sender extends Thread {
 		this.unpackZip = unpackZip;
 		this.skipDuplicates = skipDuplicates;
 		this.forceMircContentType = forceMircContentType;
-		this.interval = interval;
 		this.deleteFile = deleteFile;
 		this.urlString = urlString;
+		this.threads = Math.max(threads, 1);
+		this.rateLimiter = RateLimiter.getInstance(urlString.trim());
+		this.metrics = SendMetrics.getInstance(urlString.trim());
 		String urlLC = urlString.toLowerCase().trim();
 		http = (urlLC.indexOf("http://") != -1);
 		https = (urlLC.indexOf("https://") != -1);
 		dicom = (urlLC.indexOf("dicom://") != -1);
-		if (dicom) decodeUrlString();
+		if (http || https) {
+			url = new URL(urlString.trim());
+			hostKey = HttpTransport.getHostKey(url);
+		}
+		if (dicom) {
+			decodeUrlString();
+			poolKey = AssociationPool.getKey(calledAET, callingAET, host, port);
+		}
 		listenerList = new EventListenerList();
-		if (!forceMircContentType) {
-			try {
-				InputStream is =
-					parent.getClass().getResource("/content-types.properties").openStream();
-				contentTypes = new Properties();
-				contentTypes.load(is);
-			}
-			catch (Exception e) {
+		//The content types are also used to decide which files to compress.
+		try {
+			InputStream is =
+				Sender.class.getResource("/content-types.properties").openStream();
+			contentTypes = new Properties();
+			contentTypes.load(is);
+			is.close();
+		}
+		catch (Exception e) {
+			if (parent != null) {
 				JOptionPane.showMessageDialog(
 					parent,
 					"Unable to load the content-types.properties resource:\n" + e.getMessage());
 			}
+			else logger.warn("Unable to load the content-types.properties resource", e);
 		}
 	}
 
@@ -132,20 +233,401 @@ public class Sender extends Thread {
 	 * Start the Thread.
 	 */
 	public void run() {
-		fileCount = 0;
-		skipCount = 0;
-		sopiUIDs = new HashSet<String>();
-		send(file);
-		if (interrupted()) sendEvent("<br><b><font color=\"red\">Interrupted</font></b>",true);
+		open();
+		progress = new SendProgress();
+		for (Sender peer : peers) {
+			peer.copySettings(this);
+			peer.progress = progress;
+			peer.open();
+		}
+		if (prescan && file.isDirectory() && !watch) startPrescan();
+		grouper = groupStudies ? new StudyGrouper(groupIdleTime) : null;
+		try {
+			if (watch && file.isDirectory()) watch();
+			else send(file);
+			if (grouper != null) queue(grouper.removeAll());
+		}
+		catch (InterruptedException ex) { cancelled = true; }
+		if (grouper != null) {
+			for (StudyGroup group : grouper.removeAll()) group.release();
+		}
+		traversalDone = true;
+		for (Sender peer : peers) {
+			if (cancelled) peer.cancelled = true;
+			peer.traversalDone = true;
+		}
+		finish();
+		for (Sender peer : peers) peer.finish();
+		if (cancelled && watch) sendEvent("<br><b>Stopped watching.</b>",true);
+		else if (cancelled) sendEvent("<br><b><font color=\"red\">Interrupted</font></b>",true);
 		else sendEvent("<br><b>Done.</b>",true);
 	}
 
+	// Open the state of the job for this destination and start the Workers.
+	private void open() {
+		fileCount.set(0);
+		skipCount.set(0);
+		traversalDone = false;
+		sopiUIDs = null;
+		journal = null;
+		if (resume) {
+			try {
+				journal = new SendJournal(file, urlString);
+				if (journal.getCompletedCount() > 0) {
+					sendMessage("Resuming" + getDestinationNote() + ": " + journal.getCompletedCount()
+								+ " files were sent in earlier runs<br><br>");
+				}
+			}
+			catch (Exception ex) {
+				logger.warn("Unable to open the journal for "+file, ex);
+				sendMessage("<font color=\"red\">Unable to open the job journal" + getDestinationNote()
+							+ "; all files will be sent:</font><br>"
+							+ ex.getMessage() + "<br><br>");
+			}
+		}
+		retryQueue = new RetryQueue(file, urlString);
+		retryQueue.setPolicy(maxAttempts, retryBaseDelay, retryMaxDelay);
+		outstanding.set(0);
+		if (skipDuplicates && dicom) {
+			try { sopiUIDs = UIDIndex.getInstance(poolKey); }
+			catch (Exception ex) {
+				logger.warn("Unable to open the SOPInstanceUID index for "+poolKey, ex);
+				sendMessage("<font color=\"red\">Unable to open the SOPInstanceUID index"
+							+ getDestinationNote() + "; duplicates will not be skipped:</font><br>"
+							+ ex.getMessage() + "<br><br>");
+			}
+		}
+		queue = new ArrayBlockingQueue<SendItem>(threads * queueSizePerThread);
+		metrics.attach(this);
+		workers = new Worker[threads];
+		for (int i=0; i<workers.length; i++) {
+			workers[i] = new Worker(i);
+			workers[i].start();
+		}
+	}
+
+	// Wait for the Workers to finish and close the state of the job
+	// for this destination.
+	private void finish() {
+		for (Worker worker : workers) {
+			try { worker.join(); }
+			catch (InterruptedException ex) { cancelled = true; }
+		}
+		SendItem item;
+		while ((item = queue.poll()) != null) item.release();
+		retryQueue.abandon();
+		retryQueue.close();
+		metrics.detach(this);
+		if (sopiUIDs != null) sopiUIDs.force();
+		if (journal != null) journal.close();
+		if (retryQueue.getDeadLetterCount() > 0) {
+			sendMessage("<br><font color=\"red\">" + retryQueue.getDeadLetterCount()
+						+ " files could not be sent" + getDestinationNote()
+						+ "; they are listed in</font><br>"
+						+ retryQueue.getDeadLetterFile().getAbsolutePath()
+						+ "<br>Send that file to the same destination to retry them.<br>");
+		}
+	}
+
+	// Copy the settings of the job from the Sender that walks the source
+	// to a Sender for another destination. The streaming policy belongs
+	// to the destination, so it is not copied.
+	private void copySettings(Sender sender) {
+		listenerList = sender.listenerList;
+		keepAlive = sender.keepAlive;
+		nioStreaming = sender.nioStreaming;
+		resume = sender.resume;
+		timeout = sender.timeout;
+		maxAttempts = sender.maxAttempts;
+		retryBaseDelay = sender.retryBaseDelay;
+		retryMaxDelay = sender.retryMaxDelay;
+		compress = sender.compress;
+		maxCompressedLength = sender.maxCompressedLength;
+		gzip = sender.gzip;
+		setAdaptiveConcurrency(sender.concurrencyLimiter != null);
+	}
+
+	// Get the name of the destination to add to a message, if the
+	// job has more than one destination.
+	private String getDestinationNote() {
+		return ((peers.length > 0) || (primary != null)) ? " for " + urlString : "";
+	}
+
+	/**
+	 * Stop the transmission. The Sender stops walking the directory
+	 * tree, and the Workers stop after the files they are currently
+	 * sending.
+	 */
+	public void interrupt() {
+		cancelled = true;
+		for (Sender peer : peers) peer.cancelled = true;
+		super.interrupt();
+	}
+
+	/**
+	 * Add another destination to the job. The files are read once and
+	 * sent to all the destinations in parallel, each with its own
+	 * Workers, journal, retries, and duplicate index. The settings of
+	 * the job are copied to the other destinations when the Sender is
+	 * started, except the streaming policy, which can be set on the
+	 * Sender returned by this method. This method must
+	 * be called before the Sender is started.
+	 * @param urlString the URL of the destination.
+	 * @return the Sender for the destination, which must not be started.
+	 * @throws Exception if the URL is not acceptable.
+	 */
+	public Sender addDestination(String urlString) throws Exception {
+		Sender peer = new Sender(parent, filter, file, subdirectories, unpackZip,
+								 skipDuplicates, forceMircContentType, deleteFile,
+								 urlString, threads);
+		peer.primary = this;
+		Sender[] list = new Sender[peers.length + 1];
+		System.arraycopy(peers, 0, list, 0, peers.length);
+		list[peers.length] = peer;
+		peers = list;
+		return peer;
+	}
+
+	/**
+	 * Set whether HTTP(S) connections are kept alive for reuse by
+	 * later files. The default is true. This method must be called
+	 * before the Sender is started.
+	 * @param keepAlive true to reuse connections; false to open a new
+	 * connection for each file.
+	 */
+	public void setKeepAlive(boolean keepAlive) {
+		this.keepAlive = keepAlive;
+	}
+
+	/**
+	 * Set whether HTTP(S) uploads read files through NIO channels with
+	 * large buffers or through buffered streams with small buffers.
+	 * The default is true. The setting applies to both chunked and
+	 * fixed-length uploads.
+	 * @param nioStreaming true to use NIO channels; false to use streams.
+	 */
+	public void setNioStreaming(boolean nioStreaming) {
+		this.nioStreaming = nioStreaming;
+	}
+
+	/**
+	 * Set the policy for streaming HTTP(S) uploads. Whatever the policy,
+	 * the body is always streamed, never buffered in memory by the
+	 * connection; files of unknown length are always sent chunked.
+	 * @param streamingPolicy FIXED_LENGTH, CHUNKED, or CHUNKED_ABOVE_LIMIT.
+	 * @param chunkSize the size of the chunks in bytes, or zero for the default.
+	 */
+	public void setStreamingPolicy(int streamingPolicy, int chunkSize) {
+		this.streamingPolicy = streamingPolicy;
+		this.chunkSize = (chunkSize > 0) ? chunkSize : defaultChunkSize;
+	}
+
+	/**
+	 * Get the streaming policy constant corresponding to a name.
+	 * @param name "fixed", "chunked", or "threshold".
+	 * @return the policy constant, or FIXED_LENGTH if the name is not recognized.
+	 */
+	public static int getStreamingPolicy(String name) {
+		if (name == null) return FIXED_LENGTH;
+		name = name.trim().toLowerCase();
+		if (name.equals("chunked")) return CHUNKED;
+		if (name.equals("threshold")) return CHUNKED_ABOVE_LIMIT;
+		return FIXED_LENGTH;
+	}
+
+	/**
+	 * Set whether the job records its results in a journal and skips
+	 * the files that the journal shows were sent successfully in an
+	 * earlier run with the same source and destination. The default is
+	 * false. This method must be called before the Sender is started.
+	 * @param resume true to journal the job and resume it.
+	 */
+	public void setResume(boolean resume) {
+		this.resume = resume;
+	}
+
+	/**
+	 * Set the rate limits for the destination, and for each other
+	 * destination of the job. The limits are shared by all the Senders
+	 * sending to a destination, and they take effect immediately, even
+	 * while files are being sent.
+	 * @param filesPerSecond the maximum number of files per second,
+	 * or zero for no limit.
+	 * @param bytesPerSecond the maximum number of bytes per second,
+	 * or zero for no limit.
+	 */
+	public void setRateLimits(double filesPerSecond, double bytesPerSecond) {
+		rateLimiter.setRates(filesPerSecond, bytesPerSecond);
+		for (Sender peer : peers) peer.setRateLimits(filesPerSecond, bytesPerSecond);
+	}
+
+	/**
+	 * Set whether the number of files sent in parallel adapts to the
+	 * destination. If true, the number of Worker threads is the maximum,
+	 * and a ConcurrencyLimiter raises or lowers the number actually
+	 * sending according to the round-trip times and RETRY results. The
+	 * default is false. This method must be called before the Sender
+	 * is started.
+	 * @param adaptive true to adapt the concurrency; false to send
+	 * with all the Worker threads.
+	 */
+	public void setAdaptiveConcurrency(boolean adaptive) {
+		concurrencyLimiter = adaptive ? new ConcurrencyLimiter(threads) : null;
+	}
+
+	/**
+	 * Get the number of files currently allowed in flight.
+	 * @return the adaptive limit, or the number of Worker threads
+	 * if the concurrency is not adaptive.
+	 */
+	public int getConcurrency() {
+		return (concurrencyLimiter != null) ? concurrencyLimiter.getLimit() : threads;
+	}
+
+	/**
+	 * Set the policy for retrying files that fail with a transient error:
+	 * a DICOM RETRY result, an HTTP connection failure, or an HTTP 5xx
+	 * or 429 response. Each retry is delayed by an exponential backoff
+	 * with jitter, and files that still fail after the maximum number of
+	 * attempts are listed in the job's dead-letter file. The default is
+	 * 5 attempts, with delays from 1 second up to 60 seconds. This
+	 * method must be called before the Sender is started.
+	 * @param maxAttempts the maximum number of attempts for each file,
+	 * including the first; 1 disables retries.
+	 * @param baseDelay the delay before the first retry in ms.
+	 * @param maxDelay the maximum delay before any retry in ms.
+	 */
+	public void setRetryPolicy(int maxAttempts, long baseDelay, long maxDelay) {
+		this.maxAttempts = maxAttempts;
+		this.retryBaseDelay = baseDelay;
+		this.retryMaxDelay = maxDelay;
+	}
+
+	/**
+	 * Set whether the Sender watches the source directory for new files.
+	 * In watch mode, the Sender sends the files in the directory, and
+	 * then keeps sending the files that arrive in it, until it is
+	 * interrupted. A file is sent when its size and last-modified time
+	 * have not changed for the stable time, and it is sent again if it
+	 * is modified. With deleteFile, this makes the Sender a forwarder
+	 * for the directory. The setting is ignored if the source is a file.
+	 * This method must be called before the Sender is started.
+	 * @param watch true to watch the source directory.
+	 * @param stableTime the time in ms for which a file must not change
+	 * before it is sent, or zero for the default (2 seconds).
+	 */
+	public void setWatch(boolean watch, long stableTime) {
+		this.watch = watch;
+		this.stableTime = (stableTime > 0) ? stableTime : defaultStableTime;
+	}
+
+	/**
+	 * Set whether the Sender counts the files and bytes to be sent
+	 * before they are sent, so that the progress can show the percentage
+	 * complete and the time remaining. The count runs in its own thread
+	 * while the files are being sent. It is ignored in watch mode. The
+	 * default is false. This method must be called before the Sender
+	 * is started.
+	 * @param prescan true to count the files to be sent.
+	 */
+	public void setPrescan(boolean prescan) {
+		this.prescan = prescan;
+	}
+
+	/**
+	 * Set whether the files are grouped by study. If true, the
+	 * StudyInstanceUID and SeriesInstanceUID are read from the header
+	 * of each file as it is found, and the files of each study are
+	 * queued together, in series order, to be sent by one Worker. For
+	 * DICOM, the Worker sends the whole study on one association from
+	 * the pool. Different studies are sent in parallel. Files that are
+	 * not DICOM objects are sent as usual. A study is queued when no
+	 * file has been added to it for the idle time, and at the end of
+	 * the traversal. Retries are sent individually. The default is
+	 * false. This method must be called before the Sender is started.
+	 * @param groupStudies true to group the files by study.
+	 * @param idleTime the time in ms after the last file of a study is
+	 * found before it is queued, or zero for the default (2 seconds).
+	 */
+	public void setGroupStudies(boolean groupStudies, long idleTime) {
+		this.groupStudies = groupStudies;
+		this.groupIdleTime = idleTime;
+	}
+
+	/**
+	 * Set whether DICOM images are compressed before they are sent.
+	 * If true, the pixel data of each image with an uncompressed
+	 * transfer syntax is encoded with RLE Lossless by the Compressor's
+	 * threads while the image waits in the queue, and the compressed
+	 * image is sent if it is smaller. For DICOM, an image is compressed
+	 * only if the destination accepts RLE Lossless for its SOP class,
+	 * which is found by probing the destination in the background the
+	 * first time the SOP class is seen; the images queued before the
+	 * probe finishes are sent as they are. An image sent to several
+	 * destinations is compressed once for all of them. The default is false. This method must be called
+	 * before the Sender is started.
+	 * <p>
+	 * Each Compressor thread holds a whole object in memory while it
+	 * encodes it, so objects larger than the maximum length are sent
+	 * as they are.
+	 * @param compress true to compress the images.
+	 * @param maxLength the length in bytes of the largest object to
+	 * compress, or zero for the default (32MB).
+	 */
+	public void setCompression(boolean compress, long maxLength) {
+		this.compress = compress;
+		this.maxCompressedLength = (maxLength > 0) ? maxLength : defaultMaxCompressedLength;
+	}
+
+	/**
+	 * Set whether HTTP uploads are compressed with gzip. If true, each
+	 * file is compressed as it is streamed to the connection and sent
+	 * with Content-Encoding: gzip in chunked mode, unless the content
+	 * type of its extension is one that is already compressed (such as
+	 * JPEG or zip), or it is a DICOM object in a compressed transfer
+	 * syntax. The receiver must accept gzip-encoded requests. The
+	 * default is false.
+	 * @param gzip true to compress the uploads.
+	 */
+	public void setGzip(boolean gzip) {
+		this.gzip = gzip;
+	}
+
+	/**
+	 * Get the progress of the current job.
+	 * @return the progress.
+	 */
+	public SendProgress getProgress() {
+		return progress;
+	}
+
 	/**
 	 * Get the number of files transmitted during the run call.
 	 * @return the file count.
 	 */
 	public int getFileCount() {
-		return fileCount;
+		int count = fileCount.get();
+		for (Sender peer : peers) count += peer.fileCount.get();
+		return count;
+	}
+
+	/**
+	 * Get the number of files that could not be sent after all their
+	 * attempts, and were added to the dead-letter list.
+	 * @return the dead-letter count.
+	 */
+	public int getDeadLetterCount() {
+		int count = (retryQueue != null) ? retryQueue.getDeadLetterCount() : 0;
+		for (Sender peer : peers) count += peer.getDeadLetterCount();
+		return count;
+	}
+
+	/**
+	 * Get the dead-letter list for the job.
+	 * @return the dead-letter file, which exists only if files were added to it.
+	 */
+	public File getDeadLetterFile() {
+		return (retryQueue != null) ? retryQueue.getDeadLetterFile() : null;
 	}
 
 	/**
@@ -153,7 +635,33 @@ public class Sender extends Thread {
 	 * @return the skip count.
 	 */
 	public int getSkipCount() {
-		return skipCount;
+		int count = skipCount.get();
+		for (Sender peer : peers) count += peer.skipCount.get();
+		return count;
+	}
+
+	//A Thread that takes items from the queue and sends them
+	//until the Sender has queued all the items and the queue is empty.
+	class Worker extends Thread {
+		public Worker(int index) {
+			super("FileSender-Worker-" + index);
+		}
+
+		public void run() {
+			while (!cancelled) {
+				RetryQueue.Entry retry = retryQueue.poll();
+				if (retry != null) {
+					sendItem(retry.getItem(), retry.getAttempts() + 1);
+					continue;
+				}
+				SendItem next;
+				try { next = queue.poll(100, TimeUnit.MILLISECONDS); }
+				catch (InterruptedException ex) { break; }
+				if (next instanceof StudyGroup) sendStudy((StudyGroup)next);
+				else if (next != null) sendItem(next, 1);
+				else if (traversalDone && (outstanding.get() == 0)) break;
+			}
+		}
 	}
 
 	//Unpack the URL string and make sure it is acceptable.
@@ -176,76 +684,512 @@ public class Sender extends Thread {
 		catch (Exception e) { throw new Exception("Unparseable port number ["+portString+"]"); }
 	}
 
-	// Send a file if it is not a directory.
-	// If the file is a directory, send the files in the directory
-	// that match the filter. If subdirectories == true, send the
+	// Queue a file for the Workers if it is not a directory.
+	// If the file is a directory, queue the files in the directory
+	// that match the filter. If subdirectories == true, queue the
 	// contents of any subdirectories as well.
-	private boolean send(File file) {
-		if (interrupted()) return false;
-		boolean result = false;
+	private void send(File file) throws InterruptedException {
+		if (cancelled) return;
 
 		//Handle normal files here
 		if (!file.isDirectory()) {
-			if (unpackZip && file.getName().endsWith(".zip")) return sendZipFile(file);
-			else if (http || https) result = sendFileUsingHttp(file);
-			else if (dicom) result = sendFileUsingDicom(file);
-			System.gc();
-			if (interval > 0) {
-				try { Thread.sleep(interval); }
-				catch (Exception ex) { }
-			}
-			if (result && deleteFile) file.delete();
-			return result;
+			if (file.getName().endsWith(RetryQueue.deadLetterExtension)) queueDeadLetters(file);
+			else if (unpackZip && file.getName().endsWith(".zip")) queueZipFile(file);
+			else queue(new FileItem(file));
+			return;
 		}
 
-		//Handle directories here
-		File[] files = file.listFiles(filter);
-		for (int i=0; i<files.length && !interrupted(); i++) {
-			if (!files[i].isDirectory() || subdirectories) send(files[i]);
+		//Handle directories here. The subtrees are walked in parallel
+		//by a fork-join pool. The walk is held back by the bounded queue,
+		//so the Workers start sending as soon as the first file is found.
+		ForkJoinPool pool = new ForkJoinPool(traversalThreads);
+		try { pool.invoke(new DirectoryTask(file, filter, false)); }
+		finally { pool.shutdown(); }
+	}
+
+	// Count the files to be sent in a thread of its own. The count has
+	// its own copy of the filter, whose state is not shared with the
+	// traversal, and its own small pool, so it does not hold up the
+	// traversal that feeds the Workers.
+	private void startPrescan() {
+		final SendProgress plan = progress;
+		final GeneralFileFilter scanFilter = new GeneralFileFilter(filter.getExtensions());
+		Thread scanner = new Thread("FileSender-Prescan") {
+			public void run() {
+				plan.startScan();
+				ForkJoinPool pool = new ForkJoinPool(prescanThreads);
+				try { pool.invoke(new DirectoryTask(file, scanFilter, true)); }
+				finally { pool.shutdown(); }
+				plan.endScan();
+			}
+		};
+		scanner.setDaemon(true);
+		scanner.start();
+	}
+
+	// Add a file found by the pre-scan to the totals. The entries of
+	// a zip file that is to be unpacked are counted individually.
+	private void plan(File file) {
+		String name = file.getName();
+		if (name.endsWith(RetryQueue.deadLetterExtension)) return;
+		if (unpackZip && name.endsWith(".zip")) {
+			try {
+				ZipFile zipFile = new ZipFile(file);
+				try {
+					Enumeration<? extends ZipEntry> entries = zipFile.entries();
+					while (entries.hasMoreElements()) {
+						ZipEntry entry = entries.nextElement();
+						if (!entry.isDirectory()) progress.addPlanned(entry.getSize());
+					}
+				}
+				finally { zipFile.close(); }
+			}
+			catch (Exception unreadable) { }
+		}
+		else progress.addPlanned(file.length());
+	}
+
+	// A task that queues the files in one directory that match the
+	// filter, and forks a task for each subdirectory. The entries are
+	// read with a DirectoryStream, and the attributes of each entry are
+	// read once, in a single call, and kept in a ScannedFile, so neither
+	// the filter nor the SendItem makes another call for them.
+	// When counting, the files are added to the pre-scan totals instead.
+	class DirectoryTask extends RecursiveAction {
+		static final long serialVersionUID = 1L;
+		File dir;
+		GeneralFileFilter filter;
+		boolean counting;
+
+		DirectoryTask(File dir, GeneralFileFilter filter, boolean counting) {
+			this.dir = dir;
+			this.filter = filter;
+			this.counting = counting;
+		}
+
+		protected void compute() {
+			LinkedList<DirectoryTask> subtasks = new LinkedList<DirectoryTask>();
+			try {
+				DirectoryStream<Path> stream = Files.newDirectoryStream(dir.toPath());
+				try {
+					for (Path path : stream) {
+						if (cancelled) break;
+						ScannedFile file;
+						try { file = new ScannedFile(path, Files.readAttributes(path, BasicFileAttributes.class)); }
+						catch (IOException unreadable) { continue; }
+						boolean accepted;
+						synchronized (filter) { accepted = filter.accept(file); }
+						if (!accepted) continue;
+						if (file.isDirectory()) {
+							if (subdirectories) {
+								DirectoryTask subtask = new DirectoryTask(file, filter, counting);
+								subtask.fork();
+								subtasks.add(subtask);
+							}
+						}
+						else if (counting) plan(file);
+						else send(file);
+					}
+				}
+				finally { stream.close(); }
+			}
+			catch (IOException ex) { logger.warn("Unable to list "+dir, ex); }
+			catch (InterruptedException ex) { cancelled = true; }
+			for (DirectoryTask subtask : subtasks) subtask.join();
 		}
+	}
+
+	// Watch the source directory, sending the files that arrive
+	// in it, until the Sender is interrupted.
+	private void watch() throws InterruptedException {
+		FolderWatcher watcher;
+		try { watcher = new FolderWatcher(file, filter, subdirectories, stableTime); }
+		catch (Exception e) {
+			sendMessage("<font color=\"red\">Unable to watch the directory:<br>"
+						+ file.getAbsolutePath() + "</font><br>" + e.getMessage() + "<br>");
+			return;
+		}
+		sendMessage("Watching " + file.getAbsolutePath() + " for new files<br><br>");
+		try {
+			while (!cancelled) {
+				for (File next : watcher.poll(watchPollInterval)) {
+					if (cancelled) break;
+					send(next);
+				}
+				if (grouper != null) queue(grouper.removeIdle());
+			}
+		}
+		finally { watcher.close(); }
+	}
+
+	// Queue an item for the Workers, through the grouper if the
+	// items are grouped by study.
+	private void queue(SendItem item) throws InterruptedException {
+		if (grouper != null) queue(grouper.add(item));
+		else share(item);
+	}
+
+	// Queue the studies released by the grouper. If the job is
+	// cancelled, the studies that were not queued are released.
+	private void queue(java.util.List<StudyGroup> groups) throws InterruptedException {
+		int i = 0;
+		try {
+			for (; i<groups.size(); i++) queue(groups.get(i));
+		}
+		finally {
+			for (i++; i<groups.size(); i++) groups.get(i).release();
+		}
+	}
+
+	// Queue a study for the Workers of every destination. If there is
+	// more than one, each destination gets its own group of the same
+	// shared items.
+	private void queue(StudyGroup group) throws InterruptedException {
+		if (group.size() == 1) {
+			share(group.getItems().get(0));
+			return;
+		}
+		if (peers.length == 0) {
+			enqueue(group);
+			return;
+		}
+		LinkedList<SharedItem> shared = new LinkedList<SharedItem>();
+		for (SendItem item : group.getItems()) shared.add(newSharedItem(item));
+		for (int i=0; i<=peers.length; i++) {
+			Sender sender = (i == 0) ? this : peers[i-1];
+			StudyGroup copy = new StudyGroup(group.getStudyInstanceUID());
+			for (SharedItem item : shared) copy.add(item);
+			try { sender.enqueue(copy); }
+			catch (InterruptedException ex) {
+				for (int k=i+1; k<=peers.length; k++) {
+					for (SharedItem item : shared) item.release();
+				}
+				throw ex;
+			}
+		}
+	}
+
+	// Queue an item for the Workers of every destination. If there
+	// is more than one, the destinations share the item, which is
+	// read once and released when all of them have released it.
+	private void share(SendItem item) throws InterruptedException {
+		if (peers.length == 0) {
+			enqueue(item);
+			return;
+		}
+		SharedItem shared = newSharedItem(item);
+		for (int i=0; i<=peers.length; i++) {
+			Sender sender = (i == 0) ? this : peers[i-1];
+			try { sender.enqueue(shared); }
+			catch (InterruptedException ex) {
+				for (int k=i+1; k<=peers.length; k++) shared.release();
+				throw ex;
+			}
+		}
+	}
+
+	// Make the item shared by the destinations, counting those that
+	// stream it and those that send it as a file on disk.
+	private SharedItem newSharedItem(SendItem item) {
+		int streams = dicom ? 0 : 1;
+		for (Sender peer : peers) {
+			if (!peer.dicom) streams++;
+		}
+		return new SharedItem(item, streams, peers.length + 1 - streams);
+	}
+
+	// Queue an item for the Workers unless the journal shows
+	// that it was sent to this destination in an earlier run.
+	private void enqueue(SendItem item) throws InterruptedException {
+		if (!skipCompleted(item)) offer(item, 1);
+	}
+
+	// Queue a study for the Workers, without the items that the
+	// journal shows were sent to this destination in an earlier run.
+	private void enqueue(StudyGroup group) throws InterruptedException {
+		Iterator<SendItem> it = group.getItems().iterator();
+		while (it.hasNext()) {
+			if (skipCompleted(it.next())) it.remove();
+		}
+		if (group.size() == 1) offer(group.getItems().get(0), 1);
+		else if (group.size() > 1) offer(group, group.size());
+	}
+
+	// Skip and release an item if the journal shows that it was sent
+	// to this destination in an earlier run.
+	private boolean skipCompleted(SendItem item) {
+		if ((journal == null) || !journal.isCompleted(item)) return false;
+		SenderEvent event = newResultEvent(item);
+		event.index = skipCount.incrementAndGet();
+		event.status = Status.NONE;
+		event.detail = "already sent";
+		fireSenderEvent(event);
+		metrics.filesSkipped.incrementAndGet();
+		if (item.release()) progress.record(item.getLength());
 		return true;
 	}
 
-	//Unpack a zip file and send all its contents.
-	private boolean sendZipFile(File file) {
-		if (!file.exists()) return false;
+	// Wait for space in the queue, giving up if the job is cancelled,
+	// since the Workers will not empty the queue after that. The count
+	// is the number of items that the Workers will send.
+	private void offer(SendItem item, int count) throws InterruptedException {
+		if (item instanceof StudyGroup) {
+			ListIterator<SendItem> it = ((StudyGroup)item).getItems().listIterator();
+			while (it.hasNext()) it.set(compress(it.next()));
+		}
+		else item = compress(item);
+		outstanding.addAndGet(count);
 		try {
-			ZipFile zipFile = new ZipFile(file);
-			Enumeration zipEntries = zipFile.entries();
-			while (zipEntries.hasMoreElements()) {
-				ZipEntry entry = (ZipEntry)zipEntries.nextElement();
-				if (!entry.isDirectory()) {
-					String name = entry.getName();
-					name = name.substring(name.lastIndexOf("/")+1).trim();
-					if (!name.equals("")) {
-						File outFile = File.createTempFile("FS-",".tmp");
-						BufferedOutputStream out =
-							new BufferedOutputStream(
-								new FileOutputStream(outFile));
-						BufferedInputStream in =
-							new BufferedInputStream(
-								zipFile.getInputStream(entry));
-						int size = 1024;
-						int n = 0;
-						byte[] b = new byte[size];
-						while ((n = in.read(b,0,size)) != -1) out.write(b,0,n);
-						in.close();
-						out.close();
-						send(outFile);
-						outFile.delete();
+			while (!queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+				if (cancelled) {
+					outstanding.addAndGet(-count);
+					item.release();
+					return;
+				}
+			}
+		}
+		catch (InterruptedException ex) {
+			outstanding.addAndGet(-count);
+			item.release();
+			throw ex;
+		}
+	}
+
+	// Start compressing an item, if compression is enabled, the item
+	// is a DICOM object with an uncompressed transfer syntax, and the
+	// destination accepts RLE Lossless for its SOP class. An item shared
+	// with other destinations is compressed once for all of them.
+	private SendItem compress(SendItem item) {
+		if (!compress || (item.getLength() > maxCompressedLength)) return item;
+		String sopClassUID = item.getSOPClassUID();
+		String tsUID = item.getTransferSyntaxUID();
+		if ((sopClassUID == null) || (tsUID == null) || !PresentationContextCache.isUncompressed(tsUID)) {
+			return item;
+		}
+		if (dicom && !acceptsRLE(sopClassUID)) return item;
+		String rle = PresentationContextCache.RLELossless;
+		if (item instanceof SharedItem) return ((SharedItem)item).compress(rle, metrics, !dicom);
+		return Compressor.getInstance().compress(item, rle, metrics);
+	}
+
+	// Determine whether the destination is known to accept RLE Lossless
+	// for a SOP class. If that is not known, the destination is probed
+	// on a prober thread, so the traversal does not wait for it, and
+	// the items queued before the probe finishes are sent as they are.
+	// If the destination cannot be probed, it is not probed again for
+	// the SOP class in this job.
+	private boolean acceptsRLE(final String sopClassUID) {
+		final PresentationContextCache pcCache = PresentationContextCache.getInstance();
+		final String rle = PresentationContextCache.RLELossless;
+		Boolean accepted = pcCache.isAccepted(poolKey, sopClassUID, rle);
+		if (accepted != null) return accepted.booleanValue();
+		synchronized (probes) {
+			if (!probes.add(sopClassUID)) return false;
+		}
+		prober.execute(new Runnable() {
+			public void run() {
+				Boolean result = pcCache.probe(poolKey, calledAET, callingAET, host, port, sopClassUID, rle);
+				if (result != null) {
+					synchronized (probes) { probes.remove(sopClassUID); }
+				}
+			}
+		});
+		return false;
+	}
+
+	// Queue the items listed in a dead-letter file.
+	private void queueDeadLetters(File list) throws InterruptedException {
+		java.util.List<String> paths;
+		try { paths = RetryQueue.readDeadLetters(list); }
+		catch (Exception e) {
+			sendMessage("<font color=\"red\">Unable to read the dead-letter list:<br>"
+						+ list.getAbsolutePath() + "</font><br>" + e.getMessage() + "<br>");
+			return;
+		}
+		ZipEntryItem.Archive archive = null;
+		try {
+			for (String path : paths) {
+				if (cancelled) break;
+				int k = path.indexOf("!/");
+				if (k == -1) {
+					File listed = new File(path);
+					if (listed.isFile()) queue(new FileItem(listed));
+					else sendMessage("<font color=\"red\">Unable to find " + path + "</font><br>");
+					continue;
+				}
+				File zip = new File(path.substring(0, k));
+				if ((archive == null) || !archive.file.equals(zip)) {
+					if (archive != null) archive.release();
+					archive = null;
+					try { archive = new ZipEntryItem.Archive(zip); }
+					catch (Exception e) {
+						sendMessage("<font color=\"red\">Unable to open " + zip + "</font><br>");
+						continue;
 					}
 				}
+				ZipEntry entry = archive.getZipFile().getEntry(path.substring(k + 2));
+				if (entry != null) queue(new ZipEntryItem(archive, entry));
+				else sendMessage("<font color=\"red\">Unable to find " + path + "</font><br>");
+			}
+		}
+		finally { if (archive != null) archive.release(); }
+	}
+
+	// Send the items of a study one after the other. For DICOM, the
+	// Worker holds one association from the pool for the whole study,
+	// unless a RETRY result makes it suspect, in which case it is
+	// closed and another is borrowed for the rest of the study.
+	//
+	// The rate token and the concurrency permit for each item are taken
+	// before the association is borrowed, in the same order as for single
+	// items, and the association is returned to the pool while the Worker
+	// waits for a permit, since the Worker holding the permit may be
+	// waiting for an association.
+	private void sendStudy(StudyGroup group) {
+		AssociationPool pool = AssociationPool.getInstance();
+		try {
+			for (SendItem item : group.getItems()) {
+				boolean acquired = false;
+				if (!cancelled) {
+					try {
+						rateLimiter.acquire(item.getContentLength());
+						if ((concurrencyLimiter != null) && !concurrencyLimiter.tryAcquire()) {
+							releaseHeldAssociation(pool);
+							concurrencyLimiter.acquire();
+						}
+						acquired = true;
+					}
+					catch (InterruptedException ex) { cancelled = true; }
+				}
+				if (acquired && dicom && (heldAssociation.get() == null)) {
+					long start = System.nanoTime();
+					try { heldAssociation.set(pool.borrow(poolKey)); }
+					catch (InterruptedException ex) { cancelled = true; }
+					catch (RuntimeException ex) {
+						//The item borrows its own association, and fails if it cannot.
+						logger.warn("Unable to open an association to "+poolKey, ex);
+					}
+					metrics.associationWait.record(System.nanoTime() - start);
+				}
+				sendItem(item, 1, acquired);
+			}
+		}
+		finally { releaseHeldAssociation(pool); }
+	}
+
+	// Return the association held for a study to the pool, open.
+	private void releaseHeldAssociation(AssociationPool pool) {
+		DicomStorageSCU scu = heldAssociation.get();
+		if (scu != null) {
+			heldAssociation.set(null);
+			pool.release(poolKey, scu, true);
+		}
+	}
+
+	// Send one item and record the result, taking its rate token
+	// and concurrency permit first. This method is called by the Workers.
+	private Status sendItem(SendItem item, int attempt) {
+		return sendItem(item, attempt, false);
+	}
+
+	// Send one item and record the result. If the result is RETRY, the
+	// item is scheduled to be sent again; otherwise it is released.
+	// If acquired is true, the caller has already taken the rate token
+	// and the concurrency permit.
+	private Status sendItem(SendItem item, int attempt, boolean acquired) {
+		boolean rescheduled = false;
+		try {
+			if (!acquired) {
+				if (cancelled) return Status.FAIL;
+				try {
+					rateLimiter.acquire(item.getContentLength());
+					if (concurrencyLimiter != null) concurrencyLimiter.acquire();
+				}
+				catch (InterruptedException ex) { return Status.FAIL; }
+			}
+			SenderEvent event = newResultEvent(item);
+			Status result = Status.FAIL;
+			long start = System.nanoTime();
+			long nanos = 0;
+			metrics.inFlight.incrementAndGet();
+			try {
+				if (http || https) result = sendFileUsingHttp(item, event);
+				else if (dicom) result = sendFileUsingDicom(item, event);
+			}
+			finally {
+				nanos = System.nanoTime() - start;
+				metrics.inFlight.decrementAndGet();
+				event.latency = nanos / 1000000;
+				if (concurrencyLimiter != null) {
+					concurrencyLimiter.release(event.latency, result.equals(Status.RETRY));
+				}
+			}
+			event.status = result;
+			if ((journal != null) && !result.equals(Status.NONE)) journal.record(item, result.toString());
+			if (result.equals(Status.OK) && deleteFile) item.delete();
+			if (result.equals(Status.RETRY) && !cancelled) {
+				long delay = retryQueue.schedule(item, attempt);
+				rescheduled = (delay >= 0);
+				String note = rescheduled
+					? "Attempt " + attempt + " failed; retrying in " + (delay + 500)/1000 + "s"
+					: "Failed after " + attempt + " attempts; added to the dead-letter list";
+				event.detail = (event.detail != null) ? event.detail + "<br>" + note : note;
+			}
+			//A file is numbered once, when its final result is known.
+			if (!result.equals(Status.NONE) && !rescheduled) event.index = fileCount.incrementAndGet();
+			//A file that goes to the dead-letter list counts as failed.
+			Status counted = (result.equals(Status.RETRY) && !rescheduled) ? Status.FAIL : result;
+			metrics.recordResult(counted, item.getContentLength(), nanos);
+			fireSenderEvent(event);
+			return result;
+		}
+		catch (Throwable t) {
+			//An unexpected error from a transport, the compressor, or the
+			//converter fails the item; it must not end the Worker, or the
+			//items in the queue would never be sent.
+			logger.warn("Unexpected error sending "+item.getPath(), t);
+			if (rescheduled) return Status.RETRY;
+			SenderEvent event = newResultEvent(item);
+			event.status = Status.FAIL;
+			event.detail = "Error sending the file:<br>" + t;
+			event.index = fileCount.incrementAndGet();
+			metrics.recordResult(Status.FAIL, item.getLength(), 0);
+			fireSenderEvent(event);
+			return Status.FAIL;
+		}
+		finally {
+			if (!rescheduled) {
+				if (item.release()) progress.record(item.getLength());
+				outstanding.decrementAndGet();
 			}
-			zipFile.close();
-			return true;
 		}
+	}
+
+	//Queue all the entries of a zip file. The entries are streamed
+	//from the zip file by the Workers, which may send them in parallel.
+	private void queueZipFile(File file) throws InterruptedException {
+		if (!file.exists()) return;
+		ZipEntryItem.Archive archive;
+		try { archive = new ZipEntryItem.Archive(file); }
 		catch (Exception e) {
 			sendMessage(
 					"<font color=\"red\">Error unpacking and sending the zip file:<br"
 					+file.getAbsolutePath() + "</font></br>"
 					+ e.getMessage() + "<br>");
-			return false;
+			return;
 		}
+		try {
+			Enumeration<? extends ZipEntry> zipEntries = archive.getZipFile().entries();
+			while (zipEntries.hasMoreElements() && !cancelled) {
+				ZipEntry entry = zipEntries.nextElement();
+				if (!entry.isDirectory()) {
+					String name = entry.getName();
+					name = name.substring(name.lastIndexOf("/")+1).trim();
+					if (!name.equals("")) queue(new ZipEntryItem(archive, entry));
+				}
+			}
+		}
+		finally { archive.release(); }
 	}
 
 	//Send one file using HTTP or HTTPS.
@@ -256,205 +1200,293 @@ public class Sender extends Thread {
 	//clearly nothing else in the world matters.
 	//
 	//NOTE: This code accepts all certificates when sending via HTTPS.
-	private boolean sendFileUsingHttp(File file) {
-		URL url;
+	private Status sendFileUsingHttp(SendItem item, SenderEvent event) {
+		Semaphore permits = HttpTransport.getPermits(hostKey);
+		try { permits.acquire(); }
+		catch (InterruptedException ex) { return Status.FAIL; }
+		metrics.connectionsInUse.incrementAndGet();
+		try { return sendFileUsingHttp(item, url, event); }
+		finally {
+			metrics.connectionsInUse.decrementAndGet();
+			permits.release();
+		}
+	}
+
+	//Send one file using HTTP or HTTPS on a connection obtained from the HttpTransport.
+	private Status sendFileUsingHttp(SendItem item, URL url, SenderEvent event) {
 		HttpURLConnection conn;
-		BufferedOutputStream svros;
-		BufferedInputStream fis;
-		BufferedReader svrrdr;
-		long fileLength = file.length();
-		String message = "<b>" + (++fileCount) + "</b>: Send " +
-						file.getAbsolutePath() + " to " + urlString + "<br>";
+		OutputStream svros;
+		boolean gzipped = useGzip(item);
+		long fileLength = gzipped ? -1 : item.getContentLength();
+		long start = System.nanoTime();
 		try {
-			url = new URL(urlString);
-			conn = HttpUtil.getConnection(url);
+			conn = HttpTransport.getConnection(url);
 			conn.setReadTimeout(timeout);
 			conn.setConnectTimeout(timeout);
 
 			//Set the content type
 			String contentType = null;
 			if (forceMircContentType) contentType = "application/x-mirc-dicom";
-			else if (contentTypes != null) {
-				String ext = file.getName();
-				ext = ext.substring(ext.lastIndexOf(".")+1).toLowerCase();
-				contentType = contentTypes.getProperty(ext);
-			}
+			else contentType = getExtensionType(item.getName());
 			if (contentType == null) contentType = "application/default";
 			conn.setRequestProperty("Content-Type",contentType);
-			if (fileLength > maxUnchunked) conn.setChunkedStreamingMode(0);
+			if (gzipped) conn.setRequestProperty("Content-Encoding","gzip");
+
+			//Stream the body so the connection never buffers it in memory.
+			//A fixed-length stream sets the Content-Length itself. The
+			//length of a gzipped body is not known, so it is chunked.
+			if ((fileLength < 0)
+					|| (streamingPolicy == CHUNKED)
+					|| ((streamingPolicy == CHUNKED_ABOVE_LIMIT) && (fileLength > maxUnchunked))) {
+				conn.setChunkedStreamingMode(chunkSize);
+			}
+			else conn.setFixedLengthStreamingMode(fileLength);
 
 			//Set the content disposition
-			conn.setRequestProperty("Content-Disposition","attachment; filename=\"" + file.getName() + "\"");
-			conn.setRequestProperty("Content-Length", Long.toString(file.length()));
+			conn.setRequestProperty("Content-Disposition","attachment; filename=\"" + item.getName() + "\"");
 
 			//Make the connection
 			conn.connect();
-			svros = new BufferedOutputStream( conn.getOutputStream() );
-		}
-		catch (Exception e) {
-			sendMessage(message +
-					"<font color=\"red\">Unable to establish a URLConnection to "
-					+ urlString + "</font><br>");
-			e.printStackTrace();
-			return false;
-		}
-		try {
-			fis = new BufferedInputStream( new FileInputStream(file) );
+			svros = conn.getOutputStream();
+			metrics.connect.record(System.nanoTime() - start);
 		}
 		catch (Exception e) {
-			sendMessage(message +
-					"<font color=\"red\">Unable to obtain an input stream to read the file:</font></br>"
-					+ e.getMessage() + "<br>");
-			return false;
+			event.detail = "Unable to establish a URLConnection to " + urlString;
+			logger.debug("Unable to connect to "+urlString, e);
+			return Status.RETRY;
 		}
-		//Send the file to the server
+		//Send the file to the server, timing the reads and writes separately
+		//to tell whether the upload is limited by the disk or the network.
+		FileStreamer streamer = FileStreamer.getInstance();
+		streamer.resetTimes();
+		start = System.nanoTime();
 		try {
-			int n;
-			byte[] bbuf = new byte[1024];
-			while ((n=fis.read(bbuf,0,bbuf.length)) > 0) {
-				svros.write(bbuf,0,n);
+			if (gzipped) {
+				CountingOutputStream counter = new CountingOutputStream(svros);
+				GZIPOutputStream gz = new GZIPOutputStream(counter, 8192);
+				long length;
+				//Closing the gzip stream ends its Deflater, and the counter
+				//does not pass the close on to the connection.
+				try { length = item.copyTo(gz, nioStreaming); }
+				finally { gz.close(); }
+				event.encoding = "gzip";
+				event.encodedBytes = counter.count;
+				metrics.recordGzip(length, counter.count);
 			}
-			svros.flush();
+			else item.copyTo(svros, nioStreaming);
 			//svros.close(); //do not close or response will not be received
-			fis.close();
+			metrics.upload.record(System.nanoTime() - start);
+			metrics.diskRead.record(streamer.getReadTime());
+			metrics.networkWrite.record(streamer.getWriteTime());
+		}
+		catch (FileNotFoundException e) {
+			event.detail = "Unable to obtain an input stream to read the file:<br>" + e.getMessage();
+			conn.disconnect();
+			return Status.FAIL;
 		}
 		catch (Exception e) {
-			sendMessage(message +
-					"<font color=\"red\">Error sending the file:</font><br>"
-					+ e.getMessage() + "<br>");
-			return false;
+			event.detail = "Error sending the file:<br>" + e.getMessage();
+			conn.disconnect();
+			return Status.RETRY;
 		}
+		start = System.nanoTime();
 		try {
 			int responseCode = conn.getResponseCode();
-			String code = "<b>ResponseCode = "+responseCode+"</b><br>";
-			if (responseCode != 200) code = "<font color=\"red\">"+code+"</font>";
-			message += code;
+			event.responseCode = responseCode;
+			if ((responseCode >= 500) || (responseCode == 429)) {
+				//The server is unavailable or overloaded; try again later.
+				HttpTransport.close(conn, keepAlive);
+				metrics.response.record(System.nanoTime() - start);
+				return Status.RETRY;
+			}
 			String response = FileUtil.getTextOrException( conn.getInputStream(), FileUtil.utf8, false );
-			conn.disconnect();
+			HttpTransport.close(conn, keepAlive);
+			metrics.response.record(System.nanoTime() - start);
 
 			//Try to make a nice response without knowing anything about the
 			//receiving application.
 			String responseLC = response.toLowerCase();
-			String responseFiltered = filterTagString(response);
 			if (!forceMircContentType) {
 				//See if we got an html page back
 				if (responseLC.indexOf("<html>") != -1) {
 					//We did, see if it looks like a successful submit service response
 					if (responseLC.indexOf("was received and unpacked successfully") != -1) {
 						//It does, just display OK
-						sendMessage(message + "<b>OK</b><br><br>");
-						return true;
-					}
-					else if ((responseLC.indexOf("unsupported") != -1) ||
-							 (responseLC.indexOf("failed") != -1) ||
-							 (responseLC.indexOf("error") != -1)) {
-						//This looks like an error, return the whole text in red
-						sendMessage(message + "<font color=\"red\">" + response + "</font><br><br>");
-						return false;
+						return Status.OK;
 					}
 					else {
-						//It's not clear what this is, just return the whole text in black
-						sendMessage(message + "<b>" + response + "</b><br><br>");
-						return false;
+						//This looks like an error, or it's not clear
+						//what it is; return the whole text
+						event.detail = response;
+						return Status.FAIL;
 					}
 				}
 				else {
-					//There's no way to know what this is, so return the whole text in black
-					sendMessage(message + "<b>" + response + "</b><br><br>");
-					return false;
+					//There's no way to know what this is, so return the whole text
+					event.detail = response;
+					return Status.FAIL;
 				}
 			}
 			//If it was a forced MIRC content type send, then look for "error"
-			else if (responseLC.indexOf("error") != -1) {
-				sendMessage(message + "<font color=\"red\">" + response + "</font><br><br>");
-				return false;
-			}
 			else {
-				sendMessage(message + "<b>" + response + "</b><br><br>");
-				return true;
+				event.detail = response;
+				return (responseLC.indexOf("error") != -1) ? Status.FAIL : Status.OK;
 			}
 		}
 		catch (Exception e) {
-			sendMessage(message +
-					"<font color=\"red\">Error reading the response:</font><br>"
-					+ e.getMessage() + "<br><br>");
-			return false;
+			event.detail = "Error reading the response:<br>" + e.getMessage();
+			HttpTransport.close(conn, keepAlive);
+			return Status.FAIL;
 		}
 	}
 
-	//Send one file using DICOM.
-	private boolean sendFileUsingDicom(File file) {
-		String sopiUID = null;
-		if (skipDuplicates) {
-			try {
-				DicomObject dob = new DicomObject(file);
-				sopiUID = dob.getSOPInstanceUID();
+	//Determine whether to compress an upload with gzip. Files whose
+	//extensions map to compressed content types, and DICOM objects
+	//in compressed transfer syntaxes, would not get any smaller.
+	private boolean useGzip(SendItem item) {
+		if (!gzip) return false;
+		String type = getExtensionType(item.getName());
+		if (type != null) {
+			for (String compressed : compressedTypes) {
+				if (type.startsWith(compressed)) return false;
 			}
-			catch (Exception unable) { }
 		}
-		if (!skipDuplicates || (sopiUID == null) || !sopiUIDs.contains(sopiUID)) {
-			String message = "<b>" + (++fileCount) + "</b>: Send " +
-								file.getAbsolutePath() + " to " + urlString + "<br>";
-			DicomStorageSCU dicomSender = getDicomStorageSCU(urlString);
-			Status status = dicomSender.send(file);
+		if ((type == null) || type.equals("application/dicom")) {
+			String tsUID = item.getTransferSyntaxUID();
+			if ((tsUID != null) && !PresentationContextCache.isUncompressed(tsUID)) return false;
+		}
+		return true;
+	}
+
+	//Get the content type for the extension of a file name, or null if none is known.
+	private String getExtensionType(String name) {
+		if (contentTypes == null) return null;
+		String ext = name.substring(name.lastIndexOf(".")+1).toLowerCase();
+		return contentTypes.getProperty(ext);
+	}
+
+	//An output stream that counts the bytes written to it. Closing
+	//it flushes the underlying stream but does not close it.
+	static class CountingOutputStream extends FilterOutputStream {
+		long count = 0;
+		public CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+		public void close() throws IOException {
+			out.flush();
+		}
+	}
+
+	//Send one file using DICOM.
+	private Status sendFileUsingDicom(SendItem item, SenderEvent event) {
+		File file;
+		try { file = item.getFile(); }
+		catch (Exception e) {
+			event.detail = "Unable to unpack the file:<br>" + e.getMessage();
+			return Status.FAIL;
+		}
+		String sopiUID = (sopiUIDs != null) ? item.getSOPInstanceUID() : null;
+		if ((sopiUID == null) || !sopiUIDs.contains(sopiUID)) {
+			//Check what the destination is known to accept for the object,
+			//converting it or failing it without using an association if
+			//the presentation context is known to be rejected.
+			PresentationContextCache pcCache = PresentationContextCache.getInstance();
+			String sopClassUID = item.getSOPClassUID();
+			String tsUID = item.getTransferSyntaxUID();
+			File converted = null;
+			Boolean accepted = null;
+			if ((sopClassUID != null) && (tsUID != null)) {
+				accepted = pcCache.isAccepted(poolKey, sopClassUID, tsUID);
+				if (Boolean.FALSE.equals(accepted)) {
+					String alternative = PresentationContextCache.isUncompressed(tsUID)
+											? pcCache.getAlternative(poolKey, sopClassUID) : null;
+					if (alternative == null) {
+						event.detail = "The destination does not accept SOP class "
+										+ sopClassUID + " with transfer syntax " + tsUID;
+						return Status.FAIL;
+					}
+					try { converted = TransferSyntaxConverter.convert(file, alternative); }
+					catch (Exception ex) {
+						event.detail = "Unable to convert the file to transfer syntax "
+										+ alternative + ":<br>" + ex.getMessage();
+						return Status.FAIL;
+					}
+					file = converted;
+					tsUID = alternative;
+					accepted = Boolean.TRUE;
+				}
+			}
+
+			AssociationPool pool = AssociationPool.getInstance();
+			DicomStorageSCU dicomSender = heldAssociation.get();
+			boolean held = (dicomSender != null);
+			long start = System.nanoTime();
+			if (!held) {
+				try { dicomSender = pool.borrow(poolKey); }
+				catch (InterruptedException ex) {
+					if (converted != null) converted.delete();
+					event.detail = "Interrupted while waiting for an association";
+					return Status.FAIL;
+				}
+				metrics.associationWait.record(System.nanoTime() - start);
+			}
+			start = System.nanoTime();
+			//If the send throws, the SCU is treated as suspect and closed.
+			Status status = Status.RETRY;
+			try { status = dicomSender.send(file); }
+			finally {
+				metrics.store.record(System.nanoTime() - start);
+				if (converted != null) converted.delete();
+				if (!held) pool.release(poolKey, dicomSender, !status.equals(Status.RETRY));
+				else if (status.equals(Status.RETRY)) {
+					heldAssociation.set(null);
+					pool.release(poolKey, dicomSender, false);
+				}
+			}
 			if (status.equals(Status.FAIL)) {
-				sendMessage(message +
-					"<font color=\"red\">DicomSend result = FAIL</font><br><br>");
-				return false;
+				event.detail = "DicomSend result = FAIL";
+				//If the presentation context is not known to be accepted,
+				//find out whether it was the reason for the failure.
+				if ((sopClassUID != null) && (tsUID != null) && (accepted == null)) {
+					Boolean result = pcCache.probe(poolKey, calledAET, callingAET,
+												   host, port, sopClassUID, tsUID);
+					if (Boolean.FALSE.equals(result)) {
+						event.detail += "<br>The destination does not accept SOP class "
+										+ sopClassUID + " with transfer syntax " + tsUID
+										+ "; later files will be converted or skipped";
+					}
+				}
+				return Status.FAIL;
 			}
 			else if (status.equals(Status.RETRY)) {
-				sendMessage(message +
-					"<font color=\"red\">DicomSend result = RETRY</font><br><br>");
-				return false;
+				event.detail = "DicomSend result = RETRY";
+				return Status.RETRY;
 			}
-			else {
-				sendMessage(message + "<b>OK</b><br><br>");
-				if (sopiUID != null) sopiUIDs.add(sopiUID);
+			if ((sopClassUID != null) && (tsUID != null) && (accepted == null)) {
+				pcCache.setAccepted(poolKey, sopClassUID, tsUID, true);
 			}
-			return true;
+			if (converted != null) event.detail = "Converted to transfer syntax " + tsUID;
+			if (sopiUID != null) sopiUIDs.add(sopiUID);
+			return Status.OK;
 		}
 		else {
-			sendMessage((++skipCount) + ": Skip " + file.getAbsolutePath() + "<br>");
-			//System.out.println(file + " skipped; skipDuplicates == "+skipDuplicates);
-			return false;
-		}
-	}
-
-	DicomStorageSCU lastSCU = null;
-	String lastURL = "";
-	private DicomStorageSCU getDicomStorageSCU(String url) {
-		if ( (lastURL == null) || !url.equals(lastURL) ) {
-			logger.debug("lastURL = "+lastURL);
-			logger.debug("url = "+url);			
-			logger.debug("Instantiating new DicomStorageSCU");
-			lastURL = url;
-			lastSCU = new DicomStorageSCU(
-							urlString,
-							10000, //association timeout in ms
-							false, //use new association for each file
-							0, //host tag
-							0, //port tag
-							0, //called AET tag
-							0  //calling AET tag
-						);
-		}
-		else logger.debug("Reusing DicomStorageSCU");
-		return lastSCU;
-	}
-
-	// Make a tag string readable as text
-	private static String filterTagString(String s) {
-		StringWriter sw = new StringWriter();
-		char a;
-		for (int i=0; i<s.length(); i++) {
-			a = s.charAt(i);
-			if (a == '<') sw.write(" &#60;");		//note the leading space
-			else if (a == '>') sw.write("&#62; ");	//note the trailing space
-			else if (a == '&') sw.write("&#38;");
-			else if (a == '\"') sw.write("&#34;");
-			else sw.write(a);
-		}
-		return sw.toString();
+			event.index = skipCount.incrementAndGet();
+			return Status.NONE;
+		}
+	}
+
+	//Make the event for the result of sending an item.
+	private SenderEvent newResultEvent(SendItem item) {
+		String protocol = (url != null) ? url.getProtocol() : "dicom";
+		return new SenderEvent(this, item.getPath(), item.getLength(), protocol, urlString);
 	}
 
 	// The rest of this code is for handling event listeners and for sending events.
@@ -493,18 +1525,30 @@ public class Sender extends Thread {
 	/**
 	* Fire a SenderEvent. The fileSent method calls are made in
 	* the event dispatch thread, making it safe for GUI updates.
+	* Events are queued and delivered in batches, in the order they
+	* were fired, with at most one batch waiting for the event dispatch
+	* thread, so a fast Sender cannot flood the thread with events.
 	*/
 	private void fireSenderEvent(SenderEvent se) {
-		final SenderEvent event = se;
-		final EventListener[] listeners = listenerList.getListeners(SenderListener.class);
-		Runnable fireEvents = new Runnable() {
-			public void run() {
+		if (listenerList.getListenerCount() == 0) return;
+		events.add(se);
+		if (deliveryScheduled.compareAndSet(false, true)) {
+			SwingUtilities.invokeLater(deliverEvents);
+		}
+	}
+
+	//Deliver all the queued events to the listeners.
+	private final Runnable deliverEvents = new Runnable() {
+		public void run() {
+			deliveryScheduled.set(false);
+			EventListener[] listeners = listenerList.getListeners(SenderListener.class);
+			SenderEvent event;
+			while ((event = events.poll()) != null) {
 				for (int i=0; i<listeners.length; i++) {
 					((SenderListener)listeners[i]).fileSent(event);
 				}
 			}
-		};
-		SwingUtilities.invokeLater(fireEvents);
-	}
+		}
+	};
 
 }
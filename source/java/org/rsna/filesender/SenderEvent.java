@@ -9,20 +9,38 @@ package org.rsna.filesender;
 
 import java.awt.AWTEvent;
 import java.io.File;
+import org.rsna.ctp.pipeline.Status;
 
 /**
  * The event that passes a message and done flag to SenderListeners.
+ * <p>
+ * A result event reports the outcome of sending one file, in typed
+ * fields: the path, size, protocol, status, latency, and HTTP response
+ * code of the file. Its HTML message is only built when getMessage is
+ * called, so a listener that uses only the fields costs the Sender
+ * nothing more than the event itself.
  */
 public class SenderEvent extends AWTEvent {
 
 	public static final int SENDER_EVENT = AWTEvent.RESERVED_ID_MAX + 4269;
 
-
-	/** The message that has been selected. */
-	public String message;
 	/** The flag indicating whether all files have been sent. */
 	public boolean done;
 
+	String message = null;
+	boolean result = false;
+	int index = 0;
+	String path = null;
+	long bytes = -1;
+	String protocol = null;
+	String destination = null;
+	Status status = null;
+	long latency = 0;
+	int responseCode = -1;
+	String encoding = null;
+	long encodedBytes = -1;
+	String detail = null;
+
 	/**
 	 * Class constructor capturing the message to be sent
 	 * and setting the done flag to false.
@@ -59,4 +77,173 @@ public class SenderEvent extends AWTEvent {
 		this.done = done;
 	}
 
+	/**
+	 * Class constructor for the result of sending one file. The
+	 * status and the other results are set by the Sender before
+	 * the event is fired.
+	 * @param object the source of the event.
+	 * @param path the path of the file.
+	 * @param bytes the size of the file, or -1 if it is unknown.
+	 * @param protocol the protocol: "http", "https", or "dicom".
+	 * @param destination the destination URL.
+	 */
+	public SenderEvent(Object object, String path, long bytes, String protocol, String destination) {
+		super(object, SENDER_EVENT);
+		this.result = true;
+		this.done = false;
+		this.path = path;
+		this.bytes = bytes;
+		this.protocol = protocol;
+		this.destination = destination;
+	}
+
+	/**
+	 * Determine whether this event reports the result of sending a file.
+	 * @return true if the event is a result event; false if it is a message.
+	 */
+	public boolean isResult() {
+		return result;
+	}
+
+	/**
+	 * Get the number of the file in the job. Sent files and skipped
+	 * files are numbered separately. A file is numbered when its final
+	 * result is known, so an attempt that is to be retried has no number.
+	 * @return the number of the file, or 0 if this is not a result event
+	 * or the file is to be retried.
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	/**
+	 * Get the path of the file.
+	 * @return the path, or null if this is not a result event.
+	 */
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * Get the size of the file.
+	 * @return the number of bytes, or -1 if it is unknown.
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Get the protocol used to send the file.
+	 * @return "http", "https", or "dicom", or null if this is not a result event.
+	 */
+	public String getProtocol() {
+		return protocol;
+	}
+
+	/**
+	 * Get the destination URL.
+	 * @return the destination, or null if this is not a result event.
+	 */
+	public String getDestination() {
+		return destination;
+	}
+
+	/**
+	 * Get the result of sending the file.
+	 * @return OK, FAIL, or RETRY if the file was sent, NONE if it was
+	 * skipped, or null if this is not a result event.
+	 */
+	public Status getStatus() {
+		return status;
+	}
+
+	/**
+	 * Get the time taken to send the file.
+	 * @return the latency in ms.
+	 */
+	public long getLatency() {
+		return latency;
+	}
+
+	/**
+	 * Get the HTTP response code.
+	 * @return the response code, or -1 if no response was received
+	 * or the protocol is DICOM.
+	 */
+	public int getResponseCode() {
+		return responseCode;
+	}
+
+	/**
+	 * Get the content encoding with which the file was uploaded.
+	 * @return "gzip", or null if the file was sent as it is.
+	 */
+	public String getContentEncoding() {
+		return encoding;
+	}
+
+	/**
+	 * Get the number of bytes sent after the content encoding.
+	 * @return the number of bytes, or -1 if the file was sent as it is.
+	 */
+	public long getEncodedBytes() {
+		return encodedBytes;
+	}
+
+	/**
+	 * Get the ratio of the size of the file to the number of bytes
+	 * sent after the content encoding.
+	 * @return the ratio, or 0 if the file was sent as it is.
+	 */
+	public double getCompressionRatio() {
+		return ((encodedBytes > 0) && (bytes > 0)) ? (double)bytes / encodedBytes : 0;
+	}
+
+	/**
+	 * Get the detail of the result: the response text from an HTTP
+	 * server, or a description of the error.
+	 * @return the detail, or null if there is none.
+	 */
+	public String getDetail() {
+		return detail;
+	}
+
+	/**
+	 * Get the message as HTML. For a result event, the message is
+	 * built from the results the first time this method is called.
+	 * @return the message.
+	 */
+	public synchronized String getMessage() {
+		if (message == null) message = render();
+		return message;
+	}
+
+	//Make the HTML message for a result event.
+	private String render() {
+		StringBuilder sb = new StringBuilder(256);
+		if (Status.NONE.equals(status)) {
+			sb.append(index).append(": Skip ").append(path);
+			if (detail != null) sb.append(" (").append(detail).append(")");
+			return sb.append("<br>").toString();
+		}
+		if (index > 0) sb.append("<b>").append(index).append("</b>: ");
+		sb.append("Send ")
+		  .append(path).append(" to ").append(destination).append("<br>");
+		if (responseCode != -1) {
+			String code = "<b>ResponseCode = " + responseCode + "</b><br>";
+			if (responseCode != 200) code = "<font color=\"red\">" + code + "</font>";
+			sb.append(code);
+		}
+		if (Status.OK.equals(status)) {
+			sb.append("<b>").append((detail != null) ? detail : "OK").append("</b>");
+			if (encoding != null) {
+				sb.append(" (").append(encoding)
+				  .append(String.format(" %.2f:1", getCompressionRatio())).append(")");
+			}
+		}
+		else if (detail != null) {
+			sb.append("<font color=\"red\">").append(detail).append("</font>");
+		}
+		return sb.append("<br><br>").toString();
+	}
 }
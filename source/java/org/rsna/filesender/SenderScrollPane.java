@@ -8,22 +8,39 @@
 package org.rsna.filesender;
 
 import java.awt.*;
+import java.awt.event.*;
 import java.io.*;
 import java.net.*;
 import java.util.*;
 import javax.swing.*;
 import javax.swing.event.*;
+import org.rsna.ctp.pipeline.Status;
 
 /**
  * A JScrollPane containing a JEditorPane set to display text/html
  * and not to be editable. The editor starts containing no text,
  * and provides an append method to add text. No capability is
  * provided to replace the text.
+ * <p>
+ * While files are being sent, the editor shows only the most recent
+ * messages, and it is refreshed by a timer at most four times a
+ * second, however fast the messages arrive. The text buffer keeps
+ * a bounded number of messages; when it overflows, the oldest are
+ * dropped and counted. The messages of SenderEvents are only rendered
+ * when they are displayed or kept in the buffer.
  */
-public class SenderScrollPane extends JScrollPane {
+public class SenderScrollPane extends JScrollPane implements ActionListener {
+
+	static final int refreshInterval = 250;
+	static final int maxRecentMessages = 50;
+	static final int maxBufferedMessages = 10000;
 
 	JEditorPane text;
-	StringBuffer sb;
+	LinkedList<String> buffer;
+	LinkedList<SenderEvent> recent;
+	int dropped = 0;
+	boolean changed = false;
+	javax.swing.Timer timer;
 
 	/**
 	 * Class constructor; creating an instance of the SenderScrollPane.
@@ -31,11 +48,14 @@ public class SenderScrollPane extends JScrollPane {
 	public SenderScrollPane() {
 		super();
 		this.getVerticalScrollBar().setUnitIncrement(25);
-		sb = new StringBuffer();
+		buffer = new LinkedList<String>();
+		recent = new LinkedList<SenderEvent>();
 		text = new JEditorPane();
 		text.setContentType("text/html");
 		text.setEditable(false);
 		setViewportView(text);
+		timer = new javax.swing.Timer(refreshInterval, this);
+		timer.start();
 	}
 
 	/**
@@ -44,37 +64,95 @@ public class SenderScrollPane extends JScrollPane {
 	 * @param string the string to be appended.
 	 */
 	public void append(String string) {
-		sb.append(string);
-		text.setText(sb.toString());
+		addToBuffer(string);
+		showBuffer();
 	}
 
 	/**
 	 * Append a String to the text currently in the text buffer
-	 * and display just the String (not the entire buffer).
+	 * and display just the most recent Strings (not the entire buffer).
 	 * @param string the string to be appended.
 	 */
 	public void appendString(String string) {
-		sb.append(string);
-		text.setText(string);
+		addToBuffer(string);
+		addToRecent(new SenderEvent(this, string));
 	}
 
 	/**
 	 * Append a String to the text currently in the text buffer
-	 * only if the string does not contain "OK". Then
-	 * display just the String (not the entire buffer).
+	 * only if the string does not contain "OK". Then display
+	 * just the most recent Strings (not the entire buffer).
 	 * @param string the string to be appended.
 	 */
 	public void appendErrorString(String string) {
-		if (string.indexOf("OK") == -1) sb.append(string);
-		text.setText(string);
+		if (string.indexOf("OK") == -1) addToBuffer(string);
+		addToRecent(new SenderEvent(this, string));
+	}
+
+	/**
+	 * Append the message of a SenderEvent to the text currently in
+	 * the text buffer only if the event is not the successful result
+	 * of sending a file. Then display just the most recent messages
+	 * (not the entire buffer).
+	 * @param event the event to be appended.
+	 */
+	public void appendEvent(SenderEvent event) {
+		if (!Status.OK.equals(event.getStatus())) addToBuffer(event.getMessage());
+		addToRecent(event);
 	}
 
 	/**
-	 * Display all the text in the buffer.
+	 * Stop the refresh timer and display all the text in the buffer.
 	 */
 	public void displayAll() {
-		if (sb.length() == 0) sb.append("No errors.");
-		else text.setText(sb.toString());
+		timer.stop();
+		if (buffer.size() == 0) buffer.add("No errors.");
+		else showBuffer();
+	}
+
+	/**
+	 * Refresh the display with the most recent Strings if any
+	 * have been appended since the last refresh. This method is
+	 * called by the timer.
+	 * @param event the timer event.
+	 */
+	public void actionPerformed(ActionEvent event) {
+		if (!changed) return;
+		changed = false;
+		StringBuilder sb = new StringBuilder();
+		for (SenderEvent se : recent) sb.append(se.getMessage());
+		show(sb.toString());
+	}
+
+	private void addToBuffer(String string) {
+		buffer.add(string);
+		if (buffer.size() > maxBufferedMessages) {
+			buffer.removeFirst();
+			dropped++;
+		}
+	}
+
+	private void addToRecent(SenderEvent event) {
+		recent.add(event);
+		if (recent.size() > maxRecentMessages) recent.removeFirst();
+		changed = true;
+	}
+
+	private void showBuffer() {
+		changed = false;
+		StringBuilder sb = new StringBuilder();
+		if (dropped > 0) {
+			sb.append("<i>" + dropped + " earlier messages are not shown.</i><br><br>");
+		}
+		for (String string : buffer) sb.append(string);
+		show(sb.toString());
+	}
+
+	//Display the HTML in one call to setText, so it
+	//is parsed once, and scroll to the end.
+	private void show(String html) {
+		text.setText(html);
+		text.setCaretPosition(text.getDocument().getLength());
 	}
 
 }
@@ -0,0 +1,236 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.filesender;
+
+import java.io.*;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+
+/**
+ * A SendItem that is sent to several destinations at once, and
+ * whose header is parsed once for all of them.
+ * <p>
+ * The destinations that stream the item (HTTP) share a buffer: if
+ * more than one of them streams it, the item is read once, by the
+ * first of them, into a buffer from which the others send it, and the
+ * buffer is freed when each of them has streamed it. The destinations
+ * that need a file on disk (DICOM) share a file: if more than one of
+ * them needs it, a file on disk is copied once, from the buffer if it
+ * is loaded, to a temporary file that all of them read.
+ * <p>
+ * The underlying item is released when every destination has released
+ * it, and its source is deleted only when every destination has sent
+ * it successfully. Items that are too large, or that arrive when too
+ * much is already buffered, are read by each streaming destination,
+ * usually from the system's file cache.
+ */
+public class SharedItem extends SendItem {
+
+	static final Logger logger = Logger.getLogger(SharedItem.class);
+
+	static final long maxItemSize = 16 * 1024 * 1024;
+	static final long maxBufferedSize = 128 * 1024 * 1024;
+	static final AtomicLong buffered = new AtomicLong();
+
+	SendItem item;
+	int references;
+	int destinations;
+	int streams;
+	int files;
+	int copies = 0;
+	int deletes = 0;
+	byte[] data = null;
+	boolean loaded = false;
+	File tempFile = null;
+	CompressedItem.Job job = null;
+
+	/**
+	 * Class constructor.
+	 * @param item the item to share.
+	 * @param streams the number of destinations that stream the item.
+	 * @param files the number of destinations that send the item as a
+	 * file on disk. Each destination must release the item.
+	 */
+	public SharedItem(SendItem item, int streams, int files) {
+		this.item = item;
+		this.streams = streams;
+		this.files = files;
+		this.destinations = streams + files;
+		this.references = destinations;
+	}
+
+	public String getName() {
+		return item.getName();
+	}
+
+	public String getPath() {
+		return item.getPath();
+	}
+
+	public long getLength() {
+		return item.getLength();
+	}
+
+	public long getContentLength() {
+		byte[] b = getData();
+		if (b != null) return b.length;
+		File file = getTempFile();
+		return (file != null) ? file.length() : item.getContentLength();
+	}
+
+	public long getLastModified() {
+		return item.getLastModified();
+	}
+
+	/**
+	 * Get the item as a file on disk. If more than one destination
+	 * needs the file, a file on disk is copied to a temporary file the
+	 * first time, from the buffer if it is loaded, so that its source
+	 * is read only once; the temporary file is deleted when the item
+	 * is released. Other items make their own temporary file, which
+	 * is shared in the same way.
+	 * @return the file.
+	 * @throws IOException if the file cannot be created.
+	 */
+	public synchronized File getFile() throws IOException {
+		if (tempFile != null) return tempFile;
+		if ((files < 2) || !(item instanceof FileItem)) return item.getFile();
+		File outFile = File.createTempFile("FS-",".tmp");
+		try {
+			FileOutputStream out = new FileOutputStream(outFile);
+			try {
+				if (data != null) out.write(data);
+				else item.copyTo(out, true);
+			}
+			finally { out.close(); }
+		}
+		catch (IOException ex) {
+			//Each destination reads the source itself.
+			logger.debug("Unable to copy "+item.getPath()+" to a temporary file", ex);
+			outFile.delete();
+			files = 0;
+			return item.getFile();
+		}
+		tempFile = outFile;
+		return tempFile;
+	}
+
+	public String getSOPInstanceUID() {
+		return item.getSOPInstanceUID();
+	}
+
+	public String getSOPClassUID() {
+		return item.getSOPClassUID();
+	}
+
+	public String getTransferSyntaxUID() {
+		return item.getTransferSyntaxUID();
+	}
+
+	public String getStudyInstanceUID() {
+		return item.getStudyInstanceUID();
+	}
+
+	public String getSeriesInstanceUID() {
+		return item.getSeriesInstanceUID();
+	}
+
+	protected InputStream getInputStream() throws IOException {
+		return item.getInputStream();
+	}
+
+	public long copyTo(OutputStream out, boolean nio) throws IOException {
+		try {
+			byte[] b = load(nio);
+			if (b != null) return FileStreamer.getInstance().copy(new ByteArrayInputStream(b), out);
+			File file = getTempFile();
+			if (file != null) return FileStreamer.getInstance().copy(file, out, nio);
+			return item.copyTo(out, nio);
+		}
+		finally { copied(); }
+	}
+
+	//Read the item into the buffer the first time it is streamed, if
+	//another destination will stream it after this one and it fits.
+	//Returns the buffer, or null if there is none.
+	private synchronized byte[] load(boolean nio) throws IOException {
+		if (!loaded && (streams - copies > 1) && (tempFile == null)) {
+			loaded = true;
+			long length = item.getLength();
+			if ((length >= 0) && (length <= maxItemSize)) {
+				if (buffered.addAndGet(length) <= maxBufferedSize) {
+					ByteArrayOutputStream bytes = new ByteArrayOutputStream((int)length);
+					try { item.copyTo(bytes, nio); }
+					catch (IOException ex) {
+						buffered.addAndGet(-length);
+						throw ex;
+					}
+					data = bytes.toByteArray();
+					buffered.addAndGet(data.length - length);
+				}
+				else buffered.addAndGet(-length);
+			}
+		}
+		return data;
+	}
+
+	private synchronized byte[] getData() {
+		return data;
+	}
+
+	private synchronized File getTempFile() {
+		return tempFile;
+	}
+
+	//Count a copy, freeing the buffer when every destination that
+	//streams the item has streamed it. A destination that streams
+	//the item again, to retry it, reads it from its source.
+	private synchronized void copied() {
+		loaded = true;
+		if ((++copies >= streams) && (data != null)) {
+			buffered.addAndGet(-data.length);
+			data = null;
+		}
+	}
+
+	/**
+	 * Get a CompressedItem to send to one destination. The item is
+	 * compressed once, for the first destination that asks, and the
+	 * compressed file is shared by the destinations that send it
+	 * compressed while any of them still holds it. The destination no
+	 * longer counts as one that reads the item itself.
+	 * @param tsuid the transfer syntax to compress the item to.
+	 * @param metrics the metrics in which to record the compression.
+	 * @param stream true if the destination streams the item; false
+	 * if it sends it as a file on disk.
+	 * @return the CompressedItem, which wraps this item.
+	 */
+	public synchronized CompressedItem compress(String tsuid, SendMetrics metrics, boolean stream) {
+		if (stream) streams--;
+		else files--;
+		if ((job == null) || !job.retain()) job = Compressor.getInstance().submit(this, tsuid, metrics);
+		return new CompressedItem(this, job);
+	}
+
+	public synchronized void delete() {
+		if (++deletes == destinations) item.delete();
+	}
+
+	public synchronized boolean release() {
+		if (--references > 0) return false;
+		if (data != null) {
+			buffered.addAndGet(-data.length);
+			data = null;
+		}
+		if (tempFile != null) {
+			tempFile.delete();
+			tempFile = null;
+		}
+		return item.release();
+	}
+}
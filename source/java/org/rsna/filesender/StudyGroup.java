@@ -0,0 +1,109 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.filesender;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * The items of one study, queued as a unit so that one Worker sends
+ * them one after the other, in series order, on one association.
+ * A StudyGroup is never sent itself; it only carries its items
+ * through the queue.
+ */
+public class StudyGroup extends SendItem {
+
+	String uid;
+	LinkedList<SendItem> items = new LinkedList<SendItem>();
+	long length = 0;
+	long lastAdded = System.currentTimeMillis();
+
+	/**
+	 * Class constructor.
+	 * @param uid the StudyInstanceUID of the study.
+	 */
+	public StudyGroup(String uid) {
+		this.uid = uid;
+	}
+
+	/**
+	 * Add an item to the study.
+	 * @param item the item.
+	 */
+	public void add(SendItem item) {
+		items.add(item);
+		if (item.getLength() > 0) length += item.getLength();
+		lastAdded = System.currentTimeMillis();
+	}
+
+	/**
+	 * Get the number of items in the study.
+	 * @return the number of items.
+	 */
+	public int size() {
+		return items.size();
+	}
+
+	/**
+	 * Get the items of the study.
+	 * @return the items.
+	 */
+	public java.util.List<SendItem> getItems() {
+		return items;
+	}
+
+	/**
+	 * Sort the items by series, keeping the order of the
+	 * items within each series.
+	 */
+	public void sort() {
+		Collections.sort(items, new Comparator<SendItem>() {
+			public int compare(SendItem a, SendItem b) {
+				String sa = a.getSeriesInstanceUID();
+				String sb = b.getSeriesInstanceUID();
+				if (sa == null) return (sb == null) ? 0 : 1;
+				if (sb == null) return -1;
+				return sa.compareTo(sb);
+			}
+		});
+	}
+
+	public String getName() {
+		return uid;
+	}
+
+	public String getPath() {
+		return "study " + uid + " (" + items.size() + " files)";
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public long getLastModified() {
+		return lastAdded;
+	}
+
+	public String getStudyInstanceUID() {
+		return uid;
+	}
+
+	public File getFile() throws IOException {
+		throw new IOException("A study is not a file");
+	}
+
+	public long copyTo(OutputStream out, boolean nio) throws IOException {
+		throw new IOException("A study is sent one item at a time");
+	}
+
+	public boolean release() {
+		for (SendItem item : items) item.release();
+		items.clear();
+		return true;
+	}
+}
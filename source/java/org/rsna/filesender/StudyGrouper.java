@@ -0,0 +1,129 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.filesender;
+
+import java.util.*;
+
+/**
+ * Collects the items found by the traversal into StudyGroups, by the
+ * StudyInstanceUID in their headers. A study is released to be sent
+ * when no file has been added to it for the idle time, which usually
+ * means the traversal has moved past the directories that hold it,
+ * when the grouper is holding too many items, and at the end of the
+ * traversal. Items that are not DICOM objects are not grouped.
+ */
+public class StudyGrouper {
+
+	static final long defaultIdleTime = 2000;
+	static final long sweepInterval = 250;
+	static final int maxHeldItems = 20000;
+
+	LinkedHashMap<String,StudyGroup> groups = new LinkedHashMap<String,StudyGroup>();
+	long idleTime;
+	int held = 0;
+	long lastSweep = System.currentTimeMillis();
+
+	/**
+	 * Class constructor.
+	 * @param idleTime the time in ms after the last file was added
+	 * to a study before it is released, or zero for the default.
+	 */
+	public StudyGrouper(long idleTime) {
+		this.idleTime = (idleTime > 0) ? idleTime : defaultIdleTime;
+	}
+
+	/**
+	 * Add an item to its study. The header of the item is read here,
+	 * outside the lock, so the traversal threads read headers in parallel.
+	 * @param item the item.
+	 * @return the groups released by the addition, in the order the
+	 * studies were found. An item without a StudyInstanceUID is returned
+	 * in a group of its own.
+	 */
+	public List<StudyGroup> add(SendItem item) {
+		String uid = item.getStudyInstanceUID();
+		item.getSeriesInstanceUID();
+		LinkedList<StudyGroup> released = new LinkedList<StudyGroup>();
+		if (uid == null) {
+			StudyGroup single = new StudyGroup("");
+			single.add(item);
+			released.add(single);
+			return released;
+		}
+		synchronized (this) {
+			StudyGroup group = groups.get(uid);
+			if (group == null) {
+				group = new StudyGroup(uid);
+				groups.put(uid, group);
+			}
+			group.add(item);
+			held++;
+			long now = System.currentTimeMillis();
+			if (now - lastSweep >= sweepInterval) {
+				lastSweep = now;
+				removeIdle(now, released);
+			}
+			//If too many items are held, release the largest studies.
+			while (held > maxHeldItems) released.add(remove(getLargest()));
+		}
+		return released;
+	}
+
+	/**
+	 * Release the studies to which no file has been added for the idle time.
+	 * @return the released groups.
+	 */
+	public synchronized List<StudyGroup> removeIdle() {
+		LinkedList<StudyGroup> released = new LinkedList<StudyGroup>();
+		removeIdle(System.currentTimeMillis(), released);
+		return released;
+	}
+
+	/**
+	 * Release all the studies.
+	 * @return the released groups.
+	 */
+	public synchronized List<StudyGroup> removeAll() {
+		LinkedList<StudyGroup> released = new LinkedList<StudyGroup>();
+		for (StudyGroup group : groups.values()) {
+			group.sort();
+			released.add(group);
+		}
+		groups.clear();
+		held = 0;
+		return released;
+	}
+
+	private void removeIdle(long now, LinkedList<StudyGroup> released) {
+		Iterator<StudyGroup> it = groups.values().iterator();
+		while (it.hasNext()) {
+			StudyGroup group = it.next();
+			if (now - group.lastAdded >= idleTime) {
+				it.remove();
+				held -= group.size();
+				group.sort();
+				released.add(group);
+			}
+		}
+	}
+
+	private StudyGroup getLargest() {
+		StudyGroup largest = null;
+		for (StudyGroup group : groups.values()) {
+			if ((largest == null) || (group.size() > largest.size())) largest = group;
+		}
+		return largest;
+	}
+
+	private StudyGroup remove(StudyGroup group) {
+		groups.remove(group.uid);
+		held -= group.size();
+		group.sort();
+		return group;
+	}
+}
@@ -0,0 +1,95 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.filesender;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.dcm4che.data.*;
+import org.dcm4che.dict.Tags;
+
+/**
+ * Converts DICOM files from one uncompressed transfer syntax to
+ * another, so that a file can be sent to a destination that rejects
+ * its own transfer syntax, and compresses them with RLE Lossless.
+ * The converted file is a temporary file, which the caller must delete.
+ * <p>
+ * The whole object, including its pixel data, is read into memory, so
+ * callers should limit the size of the objects they convert.
+ */
+public class TransferSyntaxConverter {
+
+	static final DcmParserFactory pFact = DcmParserFactory.getInstance();
+	static final DcmObjectFactory oFact = DcmObjectFactory.getInstance();
+
+	/**
+	 * Convert a file to a transfer syntax.
+	 * @param file the file, which must have an uncompressed transfer syntax.
+	 * @param tsuid the uncompressed transfer syntax, or RLE Lossless, to convert to.
+	 * @return the converted temporary file.
+	 * @throws IOException if the file cannot be parsed, encoded, or written.
+	 */
+	public static File convert(File file, String tsuid) throws IOException {
+		Dataset dataset = oFact.newDataset();
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		try {
+			DcmParser parser = pFact.newDcmParser(in);
+			parser.setDcmHandler(dataset.getDcmHandler());
+			parser.parseDcmFile(parser.detectFileFormat(), -1);
+		}
+		finally { in.close(); }
+		if (tsuid.equals(PresentationContextCache.RLELossless)) compress(dataset);
+		dataset.setFileMetaInfo(oFact.newFileMetaInfo(dataset, tsuid));
+		File outFile = File.createTempFile("FS-", ".dcm");
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(outFile));
+		try {
+			dataset.writeFile(out, DcmEncodeParam.valueOf(tsuid));
+			out.close();
+		}
+		catch (IOException ex) {
+			out.close();
+			outFile.delete();
+			throw ex;
+		}
+		return outFile;
+	}
+
+	//Replace the native pixel data of a dataset with RLE-encoded fragments,
+	//one per frame, after an empty Basic Offset Table.
+	private static void compress(Dataset dataset) throws IOException {
+		DcmElement pixels = dataset.get(Tags.PixelData);
+		if ((pixels == null) || pixels.hasDataFragments()) {
+			throw new IOException("The object has no native pixel data");
+		}
+		int rows = dataset.getInt(Tags.Rows, 0);
+		int columns = dataset.getInt(Tags.Columns, 0);
+		int samples = dataset.getInt(Tags.SamplesPerPixel, 1);
+		int bitsAllocated = dataset.getInt(Tags.BitsAllocated, 0);
+		int frames = dataset.getInt(Tags.NumberOfFrames, 1);
+		String pi = dataset.getString(Tags.PhotometricInterpretation);
+		if (!RleEncoder.canEncode(rows, columns, samples, bitsAllocated)
+				|| (frames < 1)
+				|| ((pi != null) && (pi.startsWith("YBR_FULL_422") || pi.startsWith("YBR_PARTIAL")))) {
+			throw new IOException("The image cannot be encoded with RLE");
+		}
+		boolean planar = (samples > 1) && (dataset.getInt(Tags.PlanarConfiguration, 0) == 1);
+		RleEncoder encoder = new RleEncoder(rows, columns, samples, bitsAllocated, planar);
+		ByteBuffer bb = pixels.getByteBuffer(ByteOrder.LITTLE_ENDIAN);
+		byte[] data = new byte[bb.remaining()];
+		bb.get(data);
+		int frameLength = encoder.getFrameLength();
+		if (data.length < (long)frames * frameLength) {
+			throw new IOException("The pixel data is shorter than the image");
+		}
+		DcmElement fragments = dataset.putOBsq(Tags.PixelData);
+		fragments.addDataFragment(ByteBuffer.wrap(new byte[0]));
+		for (int i=0; i<frames; i++) {
+			fragments.addDataFragment(ByteBuffer.wrap(encoder.encode(data, i * frameLength)));
+		}
+	}
+}
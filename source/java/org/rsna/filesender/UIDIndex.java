@@ -0,0 +1,323 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.filesender;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.apache.log4j.Logger;
+
+/**
+ * A persistent set of UIDs that have been sent to a destination,
+ * used to skip duplicate SOPInstanceUIDs across runs.
+ * <p>
+ * The set is an open-addressing hash table of UID hashes in a
+ * memory-mapped file, so it survives restarts and its size does
+ * not count against the heap. Each slot holds two independent
+ * 64-bit hashes of a UID. At the maximum load factor of 0.5,
+ * ten million UIDs occupy a 512MB file. When the table fills, it is
+ * rehashed into a new file with twice the capacity, and the old file
+ * is deleted. The table is safe for use by many threads; lookups
+ * proceed in parallel.
+ * <p>
+ * The table is mapped as a single buffer, which cannot exceed 2GB, so
+ * the capacity is capped at 2^26 slots and the index holds at most
+ * about 50 million UIDs. If the table cannot grow, because it is at the
+ * cap or the disk is full, it accepts UIDs up to a load factor of 0.75
+ * and then refuses them, so duplicates of later UIDs are not skipped.
+ * <p>
+ * Because only hashes are stored, two different UIDs could collide
+ * and the second would be skipped. A UID is found only if both of
+ * its hashes match, so a collision needs 128 matching bits, and the
+ * chance of one among fifty million UIDs is negligible.
+ * <p>
+ * Index files written in the older format, with one hash per slot,
+ * are discarded when the index is opened, so the UIDs they held are
+ * sent again rather than risking a skipped image.
+ */
+public class UIDIndex {
+
+	static final Logger logger = Logger.getLogger(UIDIndex.class);
+
+	static final File indexDir = new File("uid-index");
+	static final Hashtable<String,UIDIndex> indexes = new Hashtable<String,UIDIndex>();
+
+	static final long magic = 0x4653554944495832L; //"FSUIDIX2"
+	static final int headerSize = 32;
+	static final int slotSize = 16;
+	static final int initialCapacity = 1 << 20;
+	static final int maxCapacity = 1 << 26;
+
+	String name;
+	int generation;
+	File file;
+	RandomAccessFile raf;
+	MappedByteBuffer table;
+	int capacity;
+	long count;
+	ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	boolean full = false;
+	long nextGrowth = 0;
+
+	/**
+	 * Get the index for a destination, opening or creating it if necessary.
+	 * All callers for the same destination share one instance.
+	 * @param destination the destination URL.
+	 * @return the index.
+	 * @throws IOException if the index file cannot be opened or created.
+	 */
+	public static synchronized UIDIndex getInstance(String destination) throws IOException {
+		UIDIndex index = indexes.get(destination);
+		if (index == null) {
+			index = new UIDIndex(getName(destination));
+			indexes.put(destination, index);
+		}
+		return index;
+	}
+
+	//Make a file name for a destination. The hash distinguishes
+	//destinations that differ only in characters replaced by '_'.
+	static String getName(String destination) {
+		String name = destination.replaceAll("[^A-Za-z0-9._-]+", "_");
+		return name + "-" + Integer.toHexString(destination.hashCode());
+	}
+
+	//Protected constructor; use getInstance.
+	protected UIDIndex(String name) throws IOException {
+		this.name = name;
+		indexDir.mkdirs();
+		generation = findGeneration();
+		if (generation > 0) {
+			file = getFile(generation);
+			open(file);
+		}
+		else {
+			generation = 1;
+			file = getFile(generation);
+			create(file, initialCapacity);
+		}
+		logger.debug("Opened "+file+" with "+count+" UIDs");
+	}
+
+	/**
+	 * Determine whether a UID is in the index.
+	 * @param uid the UID.
+	 * @return true if the UID has been added to the index.
+	 */
+	public boolean contains(String uid) {
+		long h = hash(uid);
+		long h2 = hash2(uid);
+		lock.readLock().lock();
+		try {
+			int mask = capacity - 1;
+			int i = (int)h & mask;
+			for (int n=0; n<capacity; n++, i = (i + 1) & mask) {
+				int pos = headerSize + slotSize * i;
+				long v = table.getLong(pos);
+				if (v == 0) return false;
+				if ((v == h) && (table.getLong(pos + 8) == h2)) return true;
+			}
+			return false;
+		}
+		finally { lock.readLock().unlock(); }
+	}
+
+	/**
+	 * Add a UID to the index.
+	 * @param uid the UID.
+	 * @return true if the UID was added; false if it was already present
+	 * or the index is full.
+	 */
+	public boolean add(String uid) {
+		long h = hash(uid);
+		long h2 = hash2(uid);
+		lock.writeLock().lock();
+		try {
+			if ((2 * (count + 1) > capacity) && (capacity < maxCapacity) && (count >= nextGrowth)) {
+				try { grow(); }
+				catch (IOException ex) {
+					//Try again after some more UIDs, not on every add.
+					logger.warn("Unable to grow "+file, ex);
+					nextGrowth = count + capacity / 64;
+				}
+			}
+			if (4 * (count + 1) > 3L * capacity) {
+				if (!full) logger.warn(file+" is full; no more UIDs will be added");
+				full = true;
+				return false;
+			}
+			if (!insert(table, capacity, h, h2)) return false;
+			count++;
+			table.putLong(16, count);
+			return true;
+		}
+		finally { lock.writeLock().unlock(); }
+	}
+
+	/**
+	 * Get the number of UIDs in the index.
+	 * @return the number of UIDs.
+	 */
+	public long size() {
+		lock.readLock().lock();
+		try { return count; }
+		finally { lock.readLock().unlock(); }
+	}
+
+	/**
+	 * Write any changes in the index to disk.
+	 */
+	public void force() {
+		lock.readLock().lock();
+		try { table.force(); }
+		finally { lock.readLock().unlock(); }
+	}
+
+	//Insert a pair of hashes into a table, returning false if the pair
+	//is already present or there is no empty slot.
+	private static boolean insert(MappedByteBuffer t, int cap, long h, long h2) {
+		int mask = cap - 1;
+		int i = (int)h & mask;
+		for (int n=0; n<cap; n++, i = (i + 1) & mask) {
+			int pos = headerSize + slotSize * i;
+			long v = t.getLong(pos);
+			if ((v == h) && (t.getLong(pos + 8) == h2)) return false;
+			if (v == 0) {
+				t.putLong(pos + 8, h2);
+				t.putLong(pos, h);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	//Rehash into a new file with twice the capacity. The new file is
+	//marked complete only after all the hashes have been copied, so a
+	//crash during the rehash leaves the old file in use.
+	private void grow() throws IOException {
+		File newFile = getFile(generation + 1);
+		int newCapacity = capacity * 2;
+		RandomAccessFile newRaf = new RandomAccessFile(newFile, "rw");
+		newRaf.setLength(headerSize + (long)slotSize * newCapacity);
+		MappedByteBuffer newTable = newRaf.getChannel().map(
+							FileChannel.MapMode.READ_WRITE, 0, newRaf.length());
+		for (int i=0; i<capacity; i++) {
+			int pos = headerSize + slotSize * i;
+			long v = table.getLong(pos);
+			if (v != 0) insert(newTable, newCapacity, v, table.getLong(pos + 8));
+		}
+		newTable.putLong(0, magic);
+		newTable.putLong(8, newCapacity);
+		newTable.putLong(16, count);
+		newTable.force();
+		newTable.putLong(24, 1);
+		newTable.force();
+		raf.close();
+		if (!file.delete()) logger.debug("Unable to delete "+file+"; it will be removed later");
+		generation++;
+		file = newFile;
+		raf = newRaf;
+		table = newTable;
+		capacity = newCapacity;
+		logger.debug("Grew "+file+" to "+capacity+" slots");
+	}
+
+	private void create(File f, int cap) throws IOException {
+		raf = new RandomAccessFile(f, "rw");
+		raf.setLength(headerSize + (long)slotSize * cap);
+		table = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+		table.putLong(0, magic);
+		table.putLong(8, cap);
+		table.putLong(16, 0);
+		table.putLong(24, 1);
+		table.force();
+		capacity = cap;
+		count = 0;
+	}
+
+	private void open(File f) throws IOException {
+		raf = new RandomAccessFile(f, "rw");
+		table = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+		capacity = (int)table.getLong(8);
+		count = table.getLong(16);
+	}
+
+	//Find the highest complete generation of the index, deleting
+	//any older or incomplete generations.
+	private int findGeneration() {
+		int best = 0;
+		File[] files = indexDir.listFiles();
+		if (files == null) return 0;
+		for (File f : files) {
+			int g = getGeneration(f);
+			if ((g > best) && isComplete(f)) best = g;
+		}
+		for (File f : files) {
+			int g = getGeneration(f);
+			if ((g > 0) && (g != best)) f.delete();
+		}
+		return best;
+	}
+
+	private int getGeneration(File f) {
+		String n = f.getName();
+		String prefix = name + ".";
+		if (!n.startsWith(prefix) || !n.endsWith(".idx")) return 0;
+		try { return Integer.parseInt(n.substring(prefix.length(), n.length() - 4)); }
+		catch (Exception ex) { return 0; }
+	}
+
+	private static boolean isComplete(File f) {
+		try {
+			RandomAccessFile r = new RandomAccessFile(f, "r");
+			try {
+				if (r.length() < headerSize) return false;
+				long m = r.readLong();
+				long cap = r.readLong();
+				r.readLong();
+				long complete = r.readLong();
+				return (m == magic) && (complete == 1) && (r.length() == headerSize + (long)slotSize * cap);
+			}
+			finally { r.close(); }
+		}
+		catch (Exception ex) { return false; }
+	}
+
+	private File getFile(int g) {
+		return new File(indexDir, name + "." + g + ".idx");
+	}
+
+	//A 64-bit FNV-1a hash with a final mix; zero is reserved for empty slots.
+	static long hash(String s) {
+		long h = 0xcbf29ce484222325L;
+		for (int i=0; i<s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= (h >>> 33);
+		h *= 0xff51afd7ed558ccdL;
+		h ^= (h >>> 33);
+		return (h == 0) ? 1 : h;
+	}
+
+	//A second 64-bit hash, independent of the first: a multiplicative
+	//hash seeded with the length and finished with a different mix.
+	static long hash2(String s) {
+		long h = 0x9e3779b97f4a7c15L ^ s.length();
+		for (int i=0; i<s.length(); i++) {
+			h = (h ^ s.charAt(i)) * 0xc6a4a7935bd1e995L;
+			h ^= (h >>> 47);
+		}
+		h ^= (h >>> 29);
+		h *= 0xbf58476d1ce4e5b9L;
+		h ^= (h >>> 32);
+		return h;
+	}
+}
@@ -0,0 +1,143 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.filesender;
+
+import java.io.*;
+import java.util.zip.*;
+import org.apache.log4j.Logger;
+
+/**
+ * A SendItem for an entry in a zip file. The entry is streamed
+ * directly from the zip file when it is copied to an output stream.
+ * It is only written to a temporary file if the transport requires
+ * a file on disk, and the temporary file is deleted when the item
+ * is released.
+ * <p>
+ * The entries of one zip file share an Archive, which closes the
+ * zip file when the last of its entries has been released, so the
+ * entries can be sent in parallel by several Workers.
+ */
+public class ZipEntryItem extends SendItem {
+
+	static final Logger logger = Logger.getLogger(ZipEntryItem.class);
+
+	Archive archive;
+	ZipEntry entry;
+	String name;
+	File tempFile = null;
+
+	/**
+	 * Class constructor. The constructor takes a reference to the
+	 * archive, which is given up when the item is released.
+	 * @param archive the zip file containing the entry.
+	 * @param entry the entry.
+	 */
+	public ZipEntryItem(Archive archive, ZipEntry entry) {
+		this.archive = archive;
+		this.entry = entry;
+		name = entry.getName();
+		name = name.substring(name.lastIndexOf("/")+1).trim();
+		archive.retain();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getPath() {
+		return archive.file.getAbsolutePath() + "!/" + entry.getName();
+	}
+
+	public long getLength() {
+		return entry.getSize();
+	}
+
+	public long getLastModified() {
+		return entry.getTime();
+	}
+
+	public synchronized File getFile() throws IOException {
+		if (tempFile == null) {
+			File outFile = File.createTempFile("FS-",".tmp");
+			FileOutputStream out = new FileOutputStream(outFile);
+			try { copyTo(out, true); }
+			catch (IOException ex) {
+				out.close();
+				outFile.delete();
+				throw ex;
+			}
+			out.close();
+			tempFile = outFile;
+		}
+		return tempFile;
+	}
+
+	protected InputStream getInputStream() throws IOException {
+		return archive.zipFile.getInputStream(entry);
+	}
+
+	public long copyTo(OutputStream out, boolean nio) throws IOException {
+		InputStream in = archive.zipFile.getInputStream(entry);
+		try { return FileStreamer.getInstance().copy(in, out); }
+		finally { in.close(); }
+	}
+
+	public synchronized boolean release() {
+		if (tempFile != null) {
+			tempFile.delete();
+			tempFile = null;
+		}
+		if (archive != null) {
+			archive.release();
+			archive = null;
+		}
+		return true;
+	}
+
+	/**
+	 * A reference-counted open zip file.
+	 */
+	public static class Archive {
+		File file;
+		ZipFile zipFile;
+		int references = 1;
+
+		/**
+		 * Open a zip file. The caller holds the first reference
+		 * and must call release when it has created all the entries.
+		 * @param file the zip file.
+		 * @throws IOException if the file cannot be opened.
+		 */
+		public Archive(File file) throws IOException {
+			this.file = file;
+			this.zipFile = new ZipFile(file);
+		}
+
+		/**
+		 * Get the open zip file.
+		 * @return the zip file.
+		 */
+		public ZipFile getZipFile() {
+			return zipFile;
+		}
+
+		synchronized void retain() {
+			references++;
+		}
+
+		/**
+		 * Give up a reference, closing the zip file if it was the last one.
+		 */
+		public synchronized void release() {
+			if (--references == 0) {
+				try { zipFile.close(); }
+				catch (Exception ex) { logger.warn("Unable to close "+file, ex); }
+			}
+		}
+	}
+}